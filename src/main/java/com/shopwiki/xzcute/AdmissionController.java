@@ -0,0 +1,182 @@
+package com.shopwiki.xzcute;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.shopwiki.xzcute.util.Pretty;
+
+/**
+ * Bounds the total weight (estimated bytes) of the tasks a VerboseThreadPoolExecutor has queued or running,
+ * instead of their #, so 1000 tasks holding a 5MB document each can't OOM us while 1000 tiny ones still fit.
+ * See VerboseThreadPoolExecutorBuilder.setAdmissionController().
+ *
+ * A task's weight comes from its Weigher; by default that's getWeight() for tasks that implement Weighted, 0 otherwise.
+ * Once the weight in flight would go over the budget, submitting blocks (or is rejected, see setBlock())
+ * until enough tasks have finished. A task heavier than the whole budget is let in once nothing else is in flight.
+ *
+ * A task submitted by one of the executor's own workers (e.g. a follow-on stage from submitAsync(), or a task that fans out)
+ * is always let in right away, without blocking or being rejected, even if that puts the weight in flight over the budget.
+ * Only those same workers can finish tasks & release weight, so making them wait could deadlock the pool.
+ * Its weight still counts, so other submitters wait until it's back under budget.
+ *
+ * With adaptToHeap() the budget also shrinks while the heap is fuller than the high-water mark & grows back when it isn't.
+ */
+public class AdmissionController {
+
+    private static final ScheduledExecutorService HEAP_CHECKER = new DaemonScheduledExecutor(1, "AdmissionController");
+
+    private static final double SHRINK = 0.75;
+    private static final double GROW = 1.25;
+
+    public interface Weighted {
+        /**
+         * @return roughly how many bytes the task holds on to until it finishes
+         */
+        long getWeight();
+    }
+
+    public interface Weigher {
+        /**
+         * @param task what was passed to submit()
+         */
+        long weigh(Object task);
+    }
+
+    public static final Weigher DEFAULT_WEIGHER = new Weigher() {
+        @Override
+        public long weigh(Object task) {
+            return task instanceof Weighted ? ((Weighted) task).getWeight() : 0;
+        }
+    };
+
+    public final long maxBytes;
+
+    private volatile boolean block = true;
+    private volatile Weigher weigher = DEFAULT_WEIGHER;
+
+    private long inFlight = 0; // guarded by this
+    private long budget; // guarded by this
+    private ScheduledFuture<?> heapChecker = null; // guarded by this
+
+    /**
+     * @param maxBytes the budget, also the most it grows back to if it adapts to the heap
+     */
+    public AdmissionController(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.maxBytes = maxBytes;
+        this.budget = maxBytes;
+    }
+
+    /**
+     * @param block if false, tasks that don't fit are rejected with a RejectedExecutionException instead of waiting
+     */
+    public AdmissionController setBlock(boolean block) {
+        this.block = block;
+        return this;
+    }
+
+    public AdmissionController setWeigher(Weigher weigher) {
+        this.weigher = weigher;
+        return this;
+    }
+
+    /**
+     * Every period, shrinks the budget by a quarter if more than highWater of the max heap is used,
+     * otherwise grows it by a quarter, up to maxBytes. It never shrinks below minBytes.
+     *
+     * @param highWater e.g. 0.8
+     */
+    public synchronized AdmissionController adaptToHeap(final double highWater, final long minBytes, long period, TimeUnit unit) {
+        if (highWater <= 0 || highWater > 1 || minBytes <= 0 || minBytes > maxBytes) {
+            throw new IllegalArgumentException();
+        }
+        if (heapChecker != null) {
+            heapChecker.cancel(false);
+        }
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        heapChecker = HEAP_CHECKER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                MemoryUsage heap = memory.getHeapMemoryUsage();
+                long max = heap.getMax() > 0 ? heap.getMax() : heap.getCommitted();
+                adapt(heap.getUsed() > highWater * max, minBytes);
+            }
+        }, period, period, unit);
+        return this;
+    }
+
+    public synchronized void stopAdapting() {
+        if (heapChecker != null) {
+            heapChecker.cancel(false);
+            heapChecker = null;
+        }
+        budget = maxBytes;
+        notifyAll();
+    }
+
+    private synchronized void adapt(boolean heapFull, long minBytes) {
+        if (heapFull) {
+            budget = Math.max(minBytes, (long) (budget * SHRINK));
+        } else if (budget < maxBytes) {
+            budget = Math.min(maxBytes, (long) (budget * GROW));
+            notifyAll();
+        }
+    }
+
+    /**
+     * @param mayWait false to let the task in even if it doesn't fit, e.g. when it's submitted by one of the executor's workers
+     * @return the task's weight, to pass to release() once it's finished
+     * @throws RejectedExecutionException if it doesn't fit & this doesn't block, or the thread was interrupted while blocked
+     */
+    long admit(Object task, boolean mayWait) {
+        long weight = Math.max(0, weigher.weigh(task));
+        if (weight == 0) {
+            return 0;
+        }
+        synchronized (this) {
+            while (mayWait && inFlight > 0 && inFlight + weight > budget) {
+                if (! block) {
+                    throw new RejectedExecutionException("Over budget: " + getStatus() + " + " + Pretty.bytes(weight));
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted waiting for " + Pretty.bytes(weight), e);
+                }
+            }
+            inFlight += weight;
+        }
+        return weight;
+    }
+
+    synchronized void release(long weight) {
+        if (weight == 0) {
+            return;
+        }
+        inFlight -= weight;
+        notifyAll();
+    }
+
+    public synchronized long getInFlightBytes() {
+        return inFlight;
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * e.g. "12.3M of 64M in flight"
+     */
+    public synchronized String getStatus() {
+        return Pretty.bytes(inFlight) + " of " + Pretty.bytes(budget) + " in flight";
+    }
+}
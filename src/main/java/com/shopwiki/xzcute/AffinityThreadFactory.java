@@ -0,0 +1,97 @@
+package com.shopwiki.xzcute;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Pins each thread it makes to a set of CPUs, e.g. one NUMA node's (see CpuTopology),
+ * so cache-heavy tasks stay near their memory.
+ *
+ * Java can't set affinity itself, so each new thread runs "taskset -p -c <cpus> <tid>" on itself before doing anything else.
+ * This is best-effort: if taskset isn't there (or it isn't Linux), the thread runs unpinned and a warning is printed once.
+ */
+public class AffinityThreadFactory implements ThreadFactory {
+
+    private static final Path THREAD_SELF = Paths.get("/proc/thread-self");
+    private static final AtomicBoolean warned = new AtomicBoolean(false);
+
+    private final ThreadFactory threadFactory;
+    private final Set<Integer> cpus;
+    private final String cpuList;
+
+    public AffinityThreadFactory(ThreadFactory threadFactory, Set<Integer> cpus) {
+        if (cpus.isEmpty()) {
+            throw new IllegalArgumentException("No CPUs");
+        }
+        this.threadFactory = threadFactory;
+        this.cpus = ImmutableSet.copyOf(cpus);
+        this.cpuList = CpuTopology.toCpuList(cpus);
+    }
+
+    public Set<Integer> getCpus() {
+        return cpus;
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+        return threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                pinCurrentThread(cpuList);
+                runnable.run();
+            }
+        });
+    }
+
+    /**
+     * @param cpuList e.g. "0-3,8"
+     * @return false if the thread couldn't be pinned
+     */
+    public static boolean pinCurrentThread(String cpuList) {
+        try {
+            // e.g. "1234/task/1240"
+            String self = Files.readSymbolicLink(THREAD_SELF).toString();
+            String tid = self.substring(self.lastIndexOf('/') + 1);
+
+            Process process = new ProcessBuilder("taskset", "-p", "-c", cpuList, tid)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            if (! process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroy();
+                return warn("taskset timed out");
+            }
+            if (process.exitValue() != 0) {
+                return warn("taskset exited " + process.exitValue());
+            }
+            return true;
+        } catch (IOException e) {
+            return warn(e.toString());
+        } catch (UnsupportedOperationException e) {
+            return warn(e.toString()); // Not Linux
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static boolean warn(String reason) {
+        if (warned.compareAndSet(false, true)) {
+            System.err.println("Couldn't pin threads to CPUs, they'll run unpinned: " + reason);
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "cpus " + cpuList;
+    }
+}
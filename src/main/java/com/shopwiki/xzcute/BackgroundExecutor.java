@@ -20,6 +20,7 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
+import com.shopwiki.xzcute.jfr.BackgroundJobEvent;
 
 /**
  * @owner rstewart
@@ -163,14 +164,22 @@ public class BackgroundExecutor {
 
                 Object result = null;
                 long startTime = System.currentTimeMillis();
+                BackgroundJobEvent event = new BackgroundJobEvent();
+                event.begin();
                 try {
                     result = callable.call();
                 } catch (Throwable t) {
                     logger.error(name, t);
                     job.error();
+                    event.failed = true;
+                    event.exception = t.toString();
                     return Throwables.getStackTraceAsString(t);
                 } finally {
                     job.ran(startTime);
+                    if (event.shouldCommit()) {
+                        event.job = name;
+                        event.commit();
+                    }
                 }
 
                 String s = String.valueOf(result);
@@ -210,6 +219,39 @@ public class BackgroundExecutor {
         return schedule(myCallable, initialDelay, period, unit);
     }
 
+    /**
+     * Stops scheduling jobs. Runs already started are left to finish.
+     */
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return scheduler.isShutdown();
+    }
+
+    /**
+     * Stops scheduling jobs & waits until the timeout for the runs already started to finish,
+     * since the scheduler's daemon threads would otherwise die mid-job when the JVM exits.
+     * Then interrupts whatever's still running.
+     *
+     * @return the jobs still running at the timeout
+     */
+    public List<Job> shutdownGracefully(long timeout, TimeUnit unit) throws InterruptedException {
+        scheduler.shutdown();
+        if (scheduler.awaitTermination(timeout, unit)) {
+            return Collections.emptyList();
+        }
+        List<Job> running = Lists.newArrayList();
+        for (Job job : getJobs()) {
+            if (job.isRunning()) {
+                running.add(job);
+            }
+        }
+        scheduler.shutdownNow();
+        return running;
+    }
+
     private ScheduledFuture<?> schedule(final BackgroundCallable callable, long initialDelay, long period, TimeUnit unit) {
         Runnable runnable = new Runnable() {
             @Override
@@ -0,0 +1,250 @@
+package com.shopwiki.xzcute;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+
+/**
+ * Collects submitted items into batches & hands each batch to a BatchHandler on a VerboseThreadPoolExecutor worker,
+ * e.g. to write 100 rows in one round-trip instead of 100.
+ *
+ * A batch is sent when it has maxBatchSize items, or when its first item has waited lingerMillis (like Kafka's linger.ms).
+ * Each item gets its own future, completed from its part of the batch's result.
+ * If a batch never runs (its Future is cancelled, or the executor's shutdownNow() drops it),
+ * its items' futures fail with a CancellationException or RejectedExecutionException.
+ *
+ * Each batch is one task as far as the executor's counters go (so set expectedNumTasks in batches, if at all);
+ * item counts & the batch sizes are added to its status line.
+ */
+public class BatchingExecutor<I, R> {
+
+    private static final DaemonScheduledExecutor LINGER = new DaemonScheduledExecutor(1, "BatchingExecutor-linger");
+    static {
+        LINGER.setRemoveOnCancelPolicy(true); // A full batch cancels its linger, which mustn't keep the batch's items around
+    }
+
+    private static final String SEP = "; ";
+
+    public interface BatchHandler<I, R> {
+        /**
+         * If this throws, every item in the batch fails with what it threw.
+         *
+         * @return one result per item, in the same order
+         */
+        List<R> handle(List<I> items) throws Exception;
+    }
+
+    private final VerboseThreadPoolExecutor executor;
+    private final BatchHandler<I, R> handler;
+    private final int maxBatchSize;
+    private final long lingerMillis;
+
+    private final Object lock = new Object();
+    private Batch current = null; // guarded by lock
+    private boolean shutdown = false; // guarded by lock
+    private int numSending = 0; // guarded by lock, batches taken but not handed to the executor yet
+
+    private final AtomicLong itemsSubmitted = new AtomicLong(0);
+    private final AtomicLong itemsCompleted = new AtomicLong(0);
+    private final AtomicLong itemsFailed = new AtomicLong(0);
+    private final LatencyTracker batchSizes = new LatencyTracker(); // it's just a histogram
+
+    /**
+     * @param builder for the executor that runs the batches; its status supplier, if any, is kept after the batch stats
+     */
+    public BatchingExecutor(VerboseThreadPoolExecutorBuilder builder, BatchHandler<I, R> handler, int maxBatchSize, long linger, TimeUnit unit) {
+        if (maxBatchSize < 1 || linger < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.handler = handler;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerMillis = unit.toMillis(linger);
+
+        final Supplier<String> statusSupplier = builder.getStatusSupplier();
+        this.executor = builder
+                .setStatusSupplier(new Supplier<String>() {
+                    @Override
+                    public String get() {
+                        return statusSupplier == null ? getStatus() : getStatus() + SEP + statusSupplier.get();
+                    }
+                })
+                .build();
+    }
+
+    private final class Batch implements Callable<List<R>>, VerboseThreadPoolExecutor.NotRunListener {
+        final List<I> items = Lists.newArrayList();
+        final List<CompletableFuture<R>> futures = Lists.newArrayList();
+        ScheduledFuture<?> linger = null;
+
+        @Override
+        public List<R> call() throws Exception {
+            List<R> results;
+            try {
+                results = handler.handle(items);
+                if (results == null || results.size() != items.size()) {
+                    throw new IllegalStateException("Got " + (results == null ? "no" : results.size()) + " results for " + items.size() + " items");
+                }
+            } catch (Exception e) {
+                fail(e);
+                throw e;
+            }
+            int numCompleted = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                if (futures.get(i).complete(results.get(i))) {
+                    numCompleted++;
+                }
+            }
+            itemsCompleted.addAndGet(numCompleted); // Not the ones already failed, if the batch was cancelled while running
+            return results;
+        }
+
+        void fail(Throwable t) {
+            int numFailed = 0;
+            for (CompletableFuture<R> future : futures) {
+                if (future.completeExceptionally(t)) {
+                    numFailed++;
+                }
+            }
+            itemsFailed.addAndGet(numFailed);
+        }
+
+        @Override
+        public void notRun(Throwable why) {
+            fail(why);
+        }
+
+        @Override
+        public String toString() {
+            return "batch of " + items.size();
+        }
+    }
+
+    /**
+     * @return completed once the item's batch has been handled
+     */
+    public CompletableFuture<R> submit(I item) {
+        CompletableFuture<R> future = new CompletableFuture<R>();
+        Batch full = null;
+        synchronized (lock) {
+            if (shutdown) {
+                throw new RejectedExecutionException("Shut down");
+            }
+            if (current == null) {
+                final Batch batch = new Batch();
+                batch.linger = LINGER.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(batch);
+                    }
+                }, lingerMillis, TimeUnit.MILLISECONDS);
+                current = batch;
+            }
+            current.items.add(item);
+            current.futures.add(future);
+            if (current.items.size() >= maxBatchSize) {
+                full = current;
+                full.linger.cancel(false);
+                current = null;
+                numSending++;
+            }
+        }
+        itemsSubmitted.incrementAndGet();
+        if (full != null) {
+            send(full); // Outside the lock, since it blocks while the executor's queue is full
+        }
+        return future;
+    }
+
+    private void flush(Batch batch) {
+        synchronized (lock) {
+            if (current != batch) {
+                return; // Already sent because it filled up
+            }
+            current = null;
+            numSending++;
+        }
+        send(batch);
+    }
+
+    /**
+     * Sends whatever has been collected so far without waiting for it to fill up or linger.
+     */
+    public void flush() {
+        Batch batch;
+        synchronized (lock) {
+            batch = current;
+            if (batch == null) {
+                return;
+            }
+            batch.linger.cancel(false);
+            current = null;
+            numSending++;
+        }
+        send(batch);
+    }
+
+    private void send(Batch batch) {
+        batchSizes.record(batch.items.size());
+        try {
+            executor.submit(batch);
+        } catch (RejectedExecutionException e) {
+            batch.fail(e);
+        } finally {
+            synchronized (lock) {
+                numSending--;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Sends the last batch, then shuts down the executor. Items submitted after this are rejected.
+     */
+    public void shutdown() throws InterruptedException {
+        synchronized (lock) {
+            shutdown = true;
+        }
+        flush();
+        synchronized (lock) {
+            while (numSending > 0) {
+                lock.wait(); // e.g. a batch that just lingered long enough
+            }
+        }
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    public VerboseThreadPoolExecutor getExecutor() {
+        return executor;
+    }
+
+    public LatencyTracker getBatchSizes() {
+        return batchSizes;
+    }
+
+    /**
+     * e.g. "items: 1200 done, 3 failed, 40 pending; batch size p50 64, p90 100, max 100"
+     */
+    public String getStatus() {
+        long completed = itemsCompleted.get();
+        long failed = itemsFailed.get();
+        long pending = itemsSubmitted.get() - completed - failed;
+        String status = "items: " + completed + " done, " + failed + " failed, " + pending + " pending";
+        if (batchSizes.getCount() > 0) {
+            status += SEP + "batch size p50 " + batchSizes.percentile(0.5)
+                    + ", p90 " + batchSizes.percentile(0.9)
+                    + ", max " + batchSizes.getMax();
+        }
+        return status;
+    }
+}
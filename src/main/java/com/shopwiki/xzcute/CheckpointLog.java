@@ -0,0 +1,301 @@
+package com.shopwiki.xzcute;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * The IDs of the tasks a batch run has completed, kept in a local file so a run that dies part way through
+ * can be restarted without redoing them, see VerboseThreadPoolExecutor.submit(long id, Callable).
+ *
+ * Task IDs are longs >= 0, e.g. the task's line # in an input file. Each completion is appended as 8 bytes
+ * & the log is fsynced once per sync period (group commit), not once per task,
+ * so after a crash the last period's worth of tasks can be redone. Tasks need to cope with that.
+ * The fsync doesn't hold up the workers adding IDs.
+ *
+ * add() only buffers the ID; all the file I/O happens on the log's own SYNCER thread.
+ * A FileChannel closes for good if a thread doing I/O on it is interrupted,
+ * and a worker can easily still have its interrupt flag set after a task (a timeout, shutdownNow(), a task restoring the flag...).
+ * If a write fails anyway, the log is marked failed & add() throws from then on.
+ *
+ * In memory the IDs are kept in a BitSet per block of 64K IDs (like a Roaring bitmap),
+ * so dense IDs take ~1 bit each & sparse ones don't cost a BitSet the size of the biggest ID.
+ */
+public class CheckpointLog implements Closeable {
+
+    private static final ScheduledExecutorService SYNCER = new DaemonScheduledExecutor(1, "CheckpointLog");
+
+    private static final int BLOCK_BITS = 16;
+    private static final int BLOCK_MASK = (1 << BLOCK_BITS) - 1;
+
+    private static final int BUFFER_BYTES = 8 * 1024; // Written out early once this many bytes of IDs are pending
+
+    private final File file;
+    private final FileChannel channel; // only used on SYNCER, after the constructor
+    private ByteBuffer pending; // guarded by this, IDs added but not written yet
+    private ByteBuffer writing; // only used on SYNCER, swapped with pending to write it out
+    private final Map<Long, BitSet> blocks = Maps.newHashMap(); // guarded by this
+    private int size = 0; // guarded by this
+    private final int numCarriedOver;
+    private final ScheduledFuture<?> syncer;
+    private boolean writeQueued = false; // guarded by this
+    private boolean dirty = false; // only used on SYNCER, written but not fsynced
+    private boolean closed = false; // guarded by this
+    private IOException failure = null; // guarded by this
+
+    private final Runnable writer = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                write();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    public CheckpointLog(File file) throws IOException {
+        this(file, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reads the IDs already in the file, if any.
+     *
+     * @param syncPeriod how often to fsync
+     */
+    public CheckpointLog(File file, long syncPeriod, TimeUnit unit) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.pending = ByteBuffer.allocate(BUFFER_BYTES);
+        this.writing = ByteBuffer.allocate(BUFFER_BYTES);
+        try {
+            read();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.numCarriedOver = size;
+
+        long syncMillis = unit.toMillis(syncPeriod);
+        this.syncer = SYNCER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    syncNow();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void read() throws IOException {
+        ByteBuffer buffer = writing;
+        long length = channel.size();
+        long valid = length - length % 8; // a torn write at the end from a crash
+        channel.position(0);
+        while (channel.position() < valid) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), valid - channel.position()));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                index(buffer.getLong());
+            }
+        }
+        if (valid < length) {
+            channel.truncate(valid);
+        }
+        channel.position(valid);
+        buffer.clear();
+    }
+
+    /**
+     * @return false if it was already there
+     */
+    private boolean index(long id) {
+        Long key = id >>> BLOCK_BITS;
+        BitSet block = blocks.get(key);
+        if (block == null) {
+            block = new BitSet();
+            blocks.put(key, block);
+        }
+        int bit = (int) (id & BLOCK_MASK);
+        if (block.get(bit)) {
+            return false;
+        }
+        block.set(bit);
+        size++;
+        return true;
+    }
+
+    public synchronized boolean contains(long id) {
+        BitSet block = blocks.get(id >>> BLOCK_BITS);
+        return block != null && block.get((int) (id & BLOCK_MASK));
+    }
+
+    /**
+     * Records that the task is complete. It's written out on the SYNCER thread & durable after the next sync.
+     *
+     * @throws IOException if the log is closed, or an earlier write failed
+     */
+    public synchronized void add(long id) throws IOException {
+        if (id < 0) {
+            throw new IllegalArgumentException("Negative ID: " + id);
+        }
+        if (closed) {
+            throw new IOException("Closed: " + file);
+        }
+        if (failure != null) {
+            throw new IOException("Failed writing " + file, failure);
+        }
+        if (! index(id)) {
+            return;
+        }
+        if (! pending.hasRemaining()) { // SYNCER is behind, so hold on to more
+            ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        pending.putLong(id);
+        if (pending.position() >= BUFFER_BYTES && ! writeQueued) {
+            writeQueued = true;
+            SYNCER.execute(writer);
+        }
+    }
+
+    /**
+     * Only on SYNCER. Swaps the pending IDs out & writes them, without holding this, so add() doesn't wait on the disk.
+     */
+    private void write() throws IOException {
+        synchronized (this) {
+            writeQueued = false;
+            if (closed || failure != null || pending.position() == 0) {
+                return;
+            }
+            ByteBuffer full = pending;
+            pending = writing;
+            writing = full;
+        }
+        writing.flip();
+        try {
+            while (writing.hasRemaining()) {
+                channel.write(writing);
+            }
+            dirty = true;
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+            throw e;
+        } finally {
+            writing.clear();
+        }
+    }
+
+    /**
+     * Only on SYNCER.
+     */
+    private void syncNow() throws IOException {
+        write();
+        if (dirty) {
+            dirty = false;
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Writes out the buffered IDs & fsyncs, so everything added so far survives a crash.
+     * Waits for the SYNCER thread to do it, even if this thread is interrupted.
+     */
+    public void sync() throws IOException {
+        onSyncer(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                syncNow();
+                return null;
+            }
+        });
+    }
+
+    private static void onSyncer(Callable<Void> task) throws IOException {
+        Future<Void> future = SYNCER.submit(task);
+        try {
+            Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return the # of IDs, including the ones carried over
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the # of IDs that were already in the file when it was opened
+     */
+    public int getNumCarriedOver() {
+        return numCarriedOver;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return true if a write failed, so IDs added since then won't be in the file
+     */
+    public synchronized boolean isFailed() {
+        return failure != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        onSyncer(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                synchronized (CheckpointLog.this) {
+                    if (closed) {
+                        return null;
+                    }
+                }
+                try {
+                    syncNow();
+                } finally {
+                    synchronized (CheckpointLog.this) {
+                        closed = true;
+                    }
+                    syncer.cancel(false);
+                    channel.close();
+                }
+                return null;
+            }
+        });
+    }
+}
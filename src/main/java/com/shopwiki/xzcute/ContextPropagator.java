@@ -0,0 +1,51 @@
+package com.shopwiki.xzcute;
+
+/**
+ * Carries some per-thread context (a trace ID, the tenant, ...) from the thread that submits a task
+ * to the worker that runs it, see VerboseThreadPoolExecutorBuilder.addContextPropagator().
+ *
+ * The worker's own context is put back after the task, so nothing leaks into the next task,
+ * and a task run by the submitting thread itself (e.g. by CallerRunsPolicy) doesn't lose that thread's context.
+ */
+public interface ContextPropagator<C> {
+
+    /**
+     * Called on the submitting thread.
+     */
+    C capture();
+
+    /**
+     * Called on the worker before the task with what capture() returned, then after it with what this returned.
+     *
+     * @return the context it replaced
+     */
+    C apply(C context);
+
+    /**
+     * Propagates the value of a ThreadLocal.
+     */
+    public static class OfThreadLocal<T> implements ContextPropagator<T> {
+
+        private final ThreadLocal<T> threadLocal;
+
+        public OfThreadLocal(ThreadLocal<T> threadLocal) {
+            this.threadLocal = threadLocal;
+        }
+
+        @Override
+        public T capture() {
+            return threadLocal.get();
+        }
+
+        @Override
+        public T apply(T context) {
+            T previous = threadLocal.get();
+            if (context == null) {
+                threadLocal.remove();
+            } else {
+                threadLocal.set(context);
+            }
+            return previous;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.shopwiki.xzcute;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Which CPUs this process may run on & which NUMA node each of them is on.
+ *
+ * Read on Linux from /proc/self/status (Cpus_allowed_list), /sys/devices/system/node
+ * or, failing that, each CPU's physical_package_id (i.e. socket) in /sys/devices/system/cpu.
+ * Anywhere else it's one node with CPUs 0 to availableProcessors() - 1.
+ */
+public class CpuTopology {
+
+    private static final File NODE_DIR = new File("/sys/devices/system/node");
+    private static final File CPU_DIR = new File("/sys/devices/system/cpu");
+    private static final File STATUS_FILE = new File("/proc/self/status");
+
+    private static volatile CpuTopology instance = null;
+
+    /**
+     * Read once, the first time it's needed.
+     */
+    public static CpuTopology get() {
+        if (instance == null) {
+            instance = read();
+        }
+        return instance;
+    }
+
+    private final Set<Integer> allowedCpus;
+    private final List<Set<Integer>> nodeToCpus; // only the allowed ones, & only nodes that have any
+
+    CpuTopology(Set<Integer> allowedCpus, List<Set<Integer>> nodeToCpus) {
+        this.allowedCpus = allowedCpus;
+        this.nodeToCpus = nodeToCpus;
+    }
+
+    public Set<Integer> getAllowedCpus() {
+        return allowedCpus;
+    }
+
+    public int getNumNodes() {
+        return nodeToCpus.size();
+    }
+
+    /**
+     * @param node 0 to getNumNodes() - 1, which isn't necessarily the kernel's node #
+     */
+    public Set<Integer> getCpus(int node) {
+        return nodeToCpus.get(node);
+    }
+
+    /**
+     * @return -1 if the CPU isn't allowed
+     */
+    public int getNode(int cpu) {
+        for (int node = 0; node < nodeToCpus.size(); node++) {
+            if (nodeToCpus.get(node).contains(cpu)) {
+                return node;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int node = 0; node < nodeToCpus.size(); node++) {
+            if (node > 0) {
+                sb.append("; ");
+            }
+            sb.append("node ").append(node).append(": ").append(toCpuList(nodeToCpus.get(node)));
+        }
+        return sb.toString();
+    }
+
+    private static CpuTopology read() {
+        Set<Integer> allowed = readAllowedCpus();
+
+        // Kernel node or socket # -> allowed CPUs
+        Map<Integer, Set<Integer>> groups = readNodes(allowed);
+        if (groups.isEmpty()) {
+            groups = readSockets(allowed);
+        }
+        if (groups.isEmpty()) {
+            groups = new TreeMap<Integer, Set<Integer>>();
+            groups.put(0, allowed);
+        }
+
+        List<Set<Integer>> nodeToCpus = Lists.newArrayList();
+        for (Set<Integer> cpus : groups.values()) {
+            nodeToCpus.add(ImmutableSet.copyOf(cpus));
+        }
+        return new CpuTopology(ImmutableSet.copyOf(allowed), ImmutableList.copyOf(nodeToCpus));
+    }
+
+    private static Set<Integer> readAllowedCpus() {
+        try {
+            for (String line : Files.readAllLines(STATUS_FILE.toPath(), Charsets.UTF_8)) {
+                if (line.startsWith("Cpus_allowed_list:")) {
+                    return parseCpuList(line.substring(line.indexOf(':') + 1));
+                }
+            }
+        } catch (IOException e) {
+            // Not Linux
+        }
+        Set<Integer> cpus = new TreeSet<Integer>();
+        for (int cpu = 0; cpu < Runtime.getRuntime().availableProcessors(); cpu++) {
+            cpus.add(cpu);
+        }
+        return cpus;
+    }
+
+    private static Map<Integer, Set<Integer>> readNodes(Set<Integer> allowed) {
+        Map<Integer, Set<Integer>> nodes = new TreeMap<Integer, Set<Integer>>();
+        File[] dirs = NODE_DIR.listFiles();
+        if (dirs == null) {
+            return nodes;
+        }
+        for (File dir : dirs) {
+            if (! dir.getName().matches("node\\d+")) {
+                continue;
+            }
+            String cpuList = readLine(new File(dir, "cpulist"));
+            if (cpuList == null) {
+                continue;
+            }
+            Set<Integer> cpus = parseCpuList(cpuList);
+            cpus.retainAll(allowed);
+            if (! cpus.isEmpty()) {
+                nodes.put(Integer.parseInt(dir.getName().substring(4)), cpus);
+            }
+        }
+        return nodes;
+    }
+
+    private static Map<Integer, Set<Integer>> readSockets(Set<Integer> allowed) {
+        Map<Integer, Set<Integer>> sockets = new TreeMap<Integer, Set<Integer>>();
+        for (int cpu : allowed) {
+            String id = readLine(new File(CPU_DIR, "cpu" + cpu + "/topology/physical_package_id"));
+            if (id == null) {
+                return Collections.emptyMap();
+            }
+            int socket = Integer.parseInt(id);
+            if (! sockets.containsKey(socket)) {
+                sockets.put(socket, new TreeSet<Integer>());
+            }
+            sockets.get(socket).add(cpu);
+        }
+        return sockets;
+    }
+
+    private static String readLine(File file) {
+        try {
+            List<String> lines = Files.readAllLines(file.toPath(), Charsets.UTF_8);
+            return lines.isEmpty() ? null : lines.get(0).trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    /**
+     * Parses the kernel's format, e.g. "0-3,8,10-11"
+     */
+    public static Set<Integer> parseCpuList(String cpuList) {
+        Set<Integer> cpus = new TreeSet<Integer>();
+        for (String range : COMMA_SPLITTER.split(cpuList)) {
+            int dash = range.indexOf('-');
+            if (dash < 0) {
+                cpus.add(Integer.parseInt(range));
+            } else {
+                int last = Integer.parseInt(range.substring(dash + 1));
+                for (int cpu = Integer.parseInt(range.substring(0, dash)); cpu <= last; cpu++) {
+                    cpus.add(cpu);
+                }
+            }
+        }
+        return cpus;
+    }
+
+    /**
+     * The reverse of parseCpuList(), e.g. for taskset
+     */
+    public static String toCpuList(Set<Integer> cpus) {
+        StringBuilder sb = new StringBuilder();
+        int start = -1;
+        int prev = -2;
+        for (int cpu : new TreeSet<Integer>(cpus)) {
+            if (cpu != prev + 1) {
+                appendRange(sb, start, prev);
+                start = cpu;
+            }
+            prev = cpu;
+        }
+        appendRange(sb, start, prev);
+        return sb.toString();
+    }
+
+    private static void appendRange(StringBuilder sb, int start, int end) {
+        if (start < 0) {
+            return;
+        }
+        if (sb.length() > 0) {
+            sb.append(',');
+        }
+        sb.append(start);
+        if (end > start) {
+            sb.append('-').append(end);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.shopwiki.xzcute;
 
+import java.util.Set;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -38,4 +39,11 @@ public final class DaemonThreadFactory {
 			}
 		};
 	}
+
+	/**
+	 * Like getInstance(name, true), but every thread is pinned to the CPUs, see AffinityThreadFactory.
+	 */
+	public static ThreadFactory getPinnedInstance(String name, Set<Integer> cpus) {
+		return new AffinityThreadFactory(getInstance(name, true), cpus);
+	}
 }
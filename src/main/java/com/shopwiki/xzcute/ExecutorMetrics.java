@@ -0,0 +1,68 @@
+package com.shopwiki.xzcute;
+
+/**
+ * A snapshot of a VerboseThreadPoolExecutor's counters, see VerboseThreadPoolExecutor.getMetrics().
+ * Latencies are in millis.
+ */
+public class ExecutorMetrics {
+
+    public final long time;
+    public final int poolSize;
+    public final int maxPoolSize;
+    public final int activeThreads;
+    public final int queueDepth;
+    public final int completed;
+    public final int exceptions;
+    public final int timedOut;      // also counted in exceptions
+    public final int expected;      // 0 if unknown
+    public final double tasksPerSecond;
+    public final long etcMillis;    // -1 if unknown
+    public final long p50Millis;
+    public final long p90Millis;
+    public final long p99Millis;
+    public final long maxMillis;
+    public final long totalMillis;
+    public final long numTimed;
+
+    public ExecutorMetrics(
+            long time,
+            int poolSize,
+            int maxPoolSize,
+            int activeThreads,
+            int queueDepth,
+            int completed,
+            int exceptions,
+            int timedOut,
+            int expected,
+            double tasksPerSecond,
+            long etcMillis,
+            long p50Millis,
+            long p90Millis,
+            long p99Millis,
+            long maxMillis,
+            long totalMillis,
+            long numTimed
+            ) {
+        this.time = time;
+        this.poolSize = poolSize;
+        this.maxPoolSize = maxPoolSize;
+        this.activeThreads = activeThreads;
+        this.queueDepth = queueDepth;
+        this.completed = completed;
+        this.exceptions = exceptions;
+        this.timedOut = timedOut;
+        this.expected = expected;
+        this.tasksPerSecond = tasksPerSecond;
+        this.etcMillis = etcMillis;
+        this.p50Millis = p50Millis;
+        this.p90Millis = p90Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+        this.totalMillis = totalMillis;
+        this.numTimed = numTimed;
+    }
+
+    public int getDone() {
+        return completed + exceptions;
+    }
+}
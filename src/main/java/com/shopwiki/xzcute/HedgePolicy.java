@@ -0,0 +1,242 @@
+package com.shopwiki.xzcute;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
+
+/**
+ * Hedged execution, for idempotent tasks only:
+ * if a task hasn't finished after its hedge delay, a 2nd copy of it is started and whichever finishes first wins.
+ *
+ * The hedge delay is the given percentile (e.g. p95) of how long tasks have taken so far,
+ * so only the slowest few percent of tasks get hedged.
+ * Until minSamples tasks have finished, defaultDelayMillis is used instead.
+ * At most maxHedgeFraction of all tasks get hedged, so a slow fleet doesn't get twice the load.
+ *
+ * One HedgePolicy should be shared by all the tasks of a batch, since it learns from all of them.
+ */
+public class HedgePolicy {
+
+    public final double percentile;
+    public final int minSamples;
+    public final long defaultDelayMillis;
+    public final double maxHedgeFraction;
+
+    private final LatencyTracker latencies = new LatencyTracker();
+    private final AtomicLong numTasks = new AtomicLong(0);
+    private final AtomicLong numHedged = new AtomicLong(0);
+    private final AtomicLong numHedgesWon = new AtomicLong(0);
+
+    public HedgePolicy() {
+        this(0.95, 20, TimeUnit.SECONDS.toMillis(10), 0.1);
+    }
+
+    public HedgePolicy(double percentile, int minSamples, long defaultDelayMillis, double maxHedgeFraction) {
+        if (percentile <= 0 || percentile > 1 || maxHedgeFraction < 0 || maxHedgeFraction > 1) {
+            throw new IllegalArgumentException();
+        }
+        this.percentile = percentile;
+        this.minSamples = minSamples;
+        this.defaultDelayMillis = defaultDelayMillis;
+        this.maxHedgeFraction = maxHedgeFraction;
+    }
+
+    public LatencyTracker getLatencies() {
+        return latencies;
+    }
+
+    public long getNumHedged() {
+        return numHedged.get();
+    }
+
+    public long getNumHedgesWon() {
+        return numHedgesWon.get();
+    }
+
+    public long getHedgeDelayMillis() {
+        if (latencies.getCount() < minSamples) {
+            return defaultDelayMillis;
+        }
+        return Math.max(1, latencies.percentile(percentile));
+    }
+
+    /**
+     * @return true if there's budget left for another hedge, which the caller must then start
+     */
+    boolean tryHedge() {
+        while (true) {
+            long hedged = numHedged.get();
+            if (hedged + 1 > maxHedgeFraction * numTasks.get()) {
+                return false;
+            }
+            if (numHedged.compareAndSet(hedged, hedged + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param executor runs both the task & its hedge, while the returned Callable waits on them
+     */
+    public <V> Callable<V> wrap(Callable<V> callable, ExecutorService executor) {
+        return new HedgedCallable<V>(callable, executor, this);
+    }
+
+    public static class HedgedCallable<V> implements Callable<V> {
+
+        private final Callable<V> callable;
+        private final ExecutorService executor;
+        private final HedgePolicy policy;
+
+        public HedgedCallable(Callable<V> callable, ExecutorService executor, HedgePolicy policy) {
+            this.callable = callable;
+            this.executor = executor;
+            this.policy = policy;
+        }
+
+        @Override
+        public V call() throws Exception {
+            policy.numTasks.incrementAndGet();
+            long startTime = System.currentTimeMillis();
+
+            CompletionService<V> completionService = new ExecutorCompletionService<V>(executor);
+            Future<V> first = completionService.submit(callable);
+            Future<V> hedge = null;
+            try {
+                Future<V> done = completionService.poll(policy.getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+                if (done == null && policy.tryHedge()) {
+                    hedge = completionService.submit(callable);
+                }
+                if (done == null) {
+                    done = completionService.take();
+                }
+
+                int numLeft = hedge == null ? 0 : 1;
+                while (true) {
+                    try {
+                        V value = done.get();
+                        policy.latencies.record(System.currentTimeMillis() - startTime);
+                        if (done == hedge) {
+                            policy.numHedgesWon.incrementAndGet();
+                        }
+                        return value;
+                    } catch (ExecutionException e) {
+                        if (numLeft-- == 0) {
+                            Throwables.propagateIfInstanceOf(e.getCause(), Exception.class);
+                            throw Throwables.propagate(e.getCause());
+                        }
+                        done = completionService.take(); // The other one may still succeed
+                    }
+                }
+            } finally {
+                first.cancel(true);
+                if (hedge != null) {
+                    hedge.cancel(true);
+                }
+            }
+        }
+
+        /**
+         * So TaskPrinter still sees the original task.
+         */
+        @Override
+        public String toString() {
+            return callable.toString();
+        }
+    }
+
+    /**
+     * The non-blocking version: the loser is cancelled once either attempt succeeds.
+     *
+     * @param attempt starts a copy of the task each time it is called
+     * @param scheduler used to start the hedge after its delay
+     */
+    public <V> CompletableFuture<V> hedgeAsync(final Supplier<CompletableFuture<V>> attempt, ScheduledExecutorService scheduler) {
+        numTasks.incrementAndGet();
+        final long startTime = System.currentTimeMillis();
+        final CompletableFuture<V> result = new CompletableFuture<V>();
+        final AtomicInteger numRunning = new AtomicInteger(1);
+
+        final CompletableFuture<V> first = attempt.get();
+        first.whenComplete(new Attempt<V>(result, numRunning, startTime, false));
+
+        final ScheduledFuture<?> hedgeTimer = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (result.isDone() || ! tryHedge()) {
+                    return;
+                }
+                numRunning.incrementAndGet();
+                CompletableFuture<V> hedge = attempt.get();
+                hedge.whenComplete(new Attempt<V>(result, numRunning, startTime, true));
+                cancelOnDone(result, hedge);
+            }
+        }, getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+
+        result.whenComplete(new BiConsumer<V, Throwable>() {
+            @Override
+            public void accept(V value, Throwable t) {
+                hedgeTimer.cancel(false);
+            }
+        });
+        cancelOnDone(result, first);
+        return result;
+    }
+
+    private final class Attempt<V> implements BiConsumer<V, Throwable> {
+        private final CompletableFuture<V> result;
+        private final AtomicInteger numRunning;
+        private final long startTime;
+        private final boolean isHedge;
+
+        Attempt(CompletableFuture<V> result, AtomicInteger numRunning, long startTime, boolean isHedge) {
+            this.result = result;
+            this.numRunning = numRunning;
+            this.startTime = startTime;
+            this.isHedge = isHedge;
+        }
+
+        @Override
+        public void accept(V value, Throwable t) {
+            if (t == null) {
+                if (result.complete(value)) {
+                    latencies.record(System.currentTimeMillis() - startTime);
+                    if (isHedge) {
+                        numHedgesWon.incrementAndGet();
+                    }
+                }
+            } else if (numRunning.decrementAndGet() == 0) {
+                // Only fail once nothing else can succeed. (A hedge that starts later re-increments numRunning first.)
+                result.completeExceptionally(t);
+            }
+        }
+    }
+
+    private static <V> void cancelOnDone(CompletableFuture<V> result, final CompletableFuture<V> attempt) {
+        result.whenComplete(new BiConsumer<V, Throwable>() {
+            @Override
+            public void accept(V value, Throwable t) {
+                attempt.cancel(true);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "hedge after p" + Math.round(percentile * 100) + " (now " + getHedgeDelayMillis() + "ms)"
+             + "; hedged " + numHedged.get() + " of " + numTasks.get() + ", won " + numHedgesWon.get();
+    }
+}
@@ -0,0 +1,109 @@
+package com.shopwiki.xzcute;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram, for tail-latency percentiles without keeping every sample.
+ *
+ * Each power of 2 is split into 4 buckets, so a percentile is accurate to within 25%.
+ * record() is a few atomic increments, so it can be called from every task.
+ */
+public class LatencyTracker {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NUM_BUCKETS = 1 + 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong total = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        counts.incrementAndGet(bucket(millis));
+        count.incrementAndGet();
+        total.addAndGet(millis);
+
+        long m;
+        while ((m = max.get()) < millis && ! max.compareAndSet(m, millis)) {
+            // retry
+        }
+    }
+
+    static int bucket(long v) {
+        if (v == 0) {
+            return 0;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub;
+        if (exp >= SUB_BUCKET_BITS) {
+            sub = (int)(v >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        } else {
+            sub = (int)(v << (SUB_BUCKET_BITS - exp)) & (SUB_BUCKETS - 1);
+        }
+        return 1 + exp * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value that falls in the bucket
+     */
+    static long upperBound(int bucket) {
+        if (bucket == 0) {
+            return 0;
+        }
+        int exp = (bucket - 1) / SUB_BUCKETS;
+        int sub = (bucket - 1) % SUB_BUCKETS;
+        if (exp >= 62) {
+            return Long.MAX_VALUE;
+        }
+        long lower = ((long)(SUB_BUCKETS + sub) << exp) >>> SUB_BUCKET_BITS;
+        long next = ((long)(SUB_BUCKETS + sub + 1) << exp) >>> SUB_BUCKET_BITS;
+        return Math.max(lower, next - 1);
+    }
+
+    /**
+     * @param p between 0 and 1, e.g. 0.99
+     * @return 0 if nothing has been recorded
+     */
+    public long percentile(double p) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getTotal() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    @Override
+    public String toString() {
+        return "p50 " + percentile(0.5) + "; p90 " + percentile(0.9) + "; p99 " + percentile(0.99) + "; max " + getMax();
+    }
+}
@@ -0,0 +1,326 @@
+package com.shopwiki.xzcute;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Publishes the metrics of registered VerboseThreadPoolExecutors & BackgroundExecutor jobs
+ * in Prometheus' text format over HTTP (GET /metrics), and/or as JSON lines appended to a file.
+ *
+ * Snapshots only read atomic counters (see VerboseThreadPoolExecutor.getMetrics()),
+ * so scraping never blocks the executors' threads.
+ */
+public class MetricsExporter {
+
+    private final Map<String, VerboseThreadPoolExecutor> executors = new ConcurrentSkipListMap<String, VerboseThreadPoolExecutor>();
+    private final Map<String, BackgroundExecutor> backgroundExecutors = new ConcurrentSkipListMap<String, BackgroundExecutor>();
+
+    private HttpServer server = null;
+    private ExecutorService serverExecutor = null; // HttpServer.stop() doesn't shut it down
+    private ScheduledExecutorService jsonWriter = null;
+
+    public MetricsExporter register(String name, VerboseThreadPoolExecutor executor) {
+        executors.put(name, executor);
+        return this;
+    }
+
+    public MetricsExporter register(String name, BackgroundExecutor executor) {
+        backgroundExecutors.put(name, executor);
+        return this;
+    }
+
+    public void unregister(String name) {
+        executors.remove(name);
+        backgroundExecutors.remove(name);
+    }
+
+    /**
+     * Serves GET /metrics on a single daemon thread.
+     * The JDK's HTTP server also starts a non-daemon dispatcher thread, so call stop() when done.
+     *
+     * @param port 0 for any free port, see getPort()
+     */
+    public synchronized MetricsExporter startHttpServer(int port) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("Already started");
+        }
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    byte[] body = toPrometheus().getBytes(Charsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        serverExecutor = Executors.newSingleThreadExecutor(DaemonThreadFactory.getInstance("MetricsExporter-http", false));
+        server.setExecutor(serverExecutor);
+        server.start();
+        return this;
+    }
+
+    public synchronized int getPort() {
+        return server == null ? -1 : server.getAddress().getPort();
+    }
+
+    /**
+     * Appends a JSON object per executor & job to the file every period.
+     */
+    public synchronized MetricsExporter startJsonLines(final File file, long period, TimeUnit unit) {
+        if (jsonWriter != null) {
+            throw new IllegalStateException("Already started");
+        }
+        jsonWriter = new DaemonScheduledExecutor(1, "MetricsExporter-json");
+        jsonWriter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    appendJsonLines(file);
+                } catch (IOException e) {
+                    System.err.println("Couldn't write metrics to " + file + ": " + e);
+                }
+            }
+        }, 0, period, unit);
+        return this;
+    }
+
+    public void appendJsonLines(File file) throws IOException {
+        String lines = toJsonLines();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), Charsets.UTF_8);
+        try {
+            writer.write(lines);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+            serverExecutor.shutdown();
+            serverExecutor = null;
+        }
+        if (jsonWriter != null) {
+            jsonWriter.shutdown();
+            jsonWriter = null;
+        }
+    }
+
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+
+        if (! executors.isEmpty()) {
+            Map<String, ExecutorMetrics> snapshots = snapshot();
+
+            header(sb, "xzcute_executor_pool_size", "gauge", "Live worker threads");
+            for (Map.Entry<String, ExecutorMetrics> e : snapshots.entrySet()) {
+                sample(sb, "xzcute_executor_pool_size", "executor", e.getKey(), e.getValue().poolSize);
+            }
+            header(sb, "xzcute_executor_max_pool_size", "gauge", "Max worker threads");
+            for (Map.Entry<String, ExecutorMetrics> e : snapshots.entrySet()) {
+                sample(sb, "xzcute_executor_max_pool_size", "executor", e.getKey(), e.getValue().maxPoolSize);
+            }
+            header(sb, "xzcute_executor_active_threads", "gauge", "Threads running a task");
+            for (Map.Entry<String, ExecutorMetrics> e : snapshots.entrySet()) {
+                sample(sb, "xzcute_executor_active_threads", "executor", e.getKey(), e.getValue().activeThreads);
+            }
+            header(sb, "xzcute_executor_queue_depth", "gauge", "Tasks waiting to run");
+            for (Map.Entry<String, ExecutorMetrics> e : snapshots.entrySet()) {
+                sample(sb, "xzcute_executor_queue_depth", "executor", e.getKey(), e.getValue().queueDepth);
+            }
+            header(sb, "xzcute_executor_tasks_completed_total", "counter", "Tasks that completed normally");
+            for (Map.Entry<String, ExecutorMetrics> e : snapshots.entrySet()) {
+                sample(sb, "xzcute_executor_tasks_completed_total", "executor", e.getKey(), e.getValue().completed);
+            }
+            header(sb, "xzcute_executor_tasks_failed_total", "counter", "Tasks that threw");
+            for (Map.Entry<String, ExecutorMetrics> e : snapshots.entrySet()) {
+                sample(sb, "xzcute_executor_tasks_failed_total", "executor", e.getKey(), e.getValue().exceptions);
+            }
+            header(sb, "xzcute_executor_tasks_timed_out_total", "counter", "Tasks that ran past their timeout, also counted as failed");
+            for (Map.Entry<String, ExecutorMetrics> e : snapshots.entrySet()) {
+                sample(sb, "xzcute_executor_tasks_timed_out_total", "executor", e.getKey(), e.getValue().timedOut);
+            }
+            header(sb, "xzcute_executor_tasks_expected", "gauge", "Tasks expected in total, 0 if unknown");
+            for (Map.Entry<String, ExecutorMetrics> e : snapshots.entrySet()) {
+                sample(sb, "xzcute_executor_tasks_expected", "executor", e.getKey(), e.getValue().expected);
+            }
+            header(sb, "xzcute_executor_throughput_per_second", "gauge", "Tasks done per second since the first was submitted");
+            for (Map.Entry<String, ExecutorMetrics> e : snapshots.entrySet()) {
+                sample(sb, "xzcute_executor_throughput_per_second", "executor", e.getKey(), e.getValue().tasksPerSecond);
+            }
+            header(sb, "xzcute_executor_etc_seconds", "gauge", "Estimated time to complete, -1 if unknown");
+            for (Map.Entry<String, ExecutorMetrics> e : snapshots.entrySet()) {
+                long etc = e.getValue().etcMillis;
+                sample(sb, "xzcute_executor_etc_seconds", "executor", e.getKey(), etc < 0 ? -1 : seconds(etc));
+            }
+            header(sb, "xzcute_executor_task_seconds", "summary", "How long tasks took to run");
+            for (Map.Entry<String, ExecutorMetrics> e : snapshots.entrySet()) {
+                ExecutorMetrics m = e.getValue();
+                String labels = "executor=\"" + escape(e.getKey()) + "\"";
+                line(sb, "xzcute_executor_task_seconds", labels + ",quantile=\"0.5\"", seconds(m.p50Millis));
+                line(sb, "xzcute_executor_task_seconds", labels + ",quantile=\"0.9\"", seconds(m.p90Millis));
+                line(sb, "xzcute_executor_task_seconds", labels + ",quantile=\"0.99\"", seconds(m.p99Millis));
+                line(sb, "xzcute_executor_task_seconds", labels + ",quantile=\"1\"", seconds(m.maxMillis));
+                line(sb, "xzcute_executor_task_seconds_sum", labels, seconds(m.totalMillis));
+                line(sb, "xzcute_executor_task_seconds_count", labels, m.numTimed);
+            }
+        }
+
+        if (! backgroundExecutors.isEmpty()) {
+            Map<String, BackgroundExecutor.Job> jobs = Maps.newLinkedHashMap(); // labels -> job
+            for (Map.Entry<String, BackgroundExecutor> e : backgroundExecutors.entrySet()) {
+                for (BackgroundExecutor.Job job : e.getValue().getJobs()) {
+                    jobs.put("executor=\"" + escape(e.getKey()) + "\",job=\"" + escape(job.name) + "\"", job);
+                }
+            }
+
+            header(sb, "xzcute_job_runs_total", "counter", "Times the job has run");
+            for (Map.Entry<String, BackgroundExecutor.Job> e : jobs.entrySet()) {
+                line(sb, "xzcute_job_runs_total", e.getKey(), e.getValue().getNumRuns());
+            }
+            header(sb, "xzcute_job_errors_total", "counter", "Times the job has thrown");
+            for (Map.Entry<String, BackgroundExecutor.Job> e : jobs.entrySet()) {
+                line(sb, "xzcute_job_errors_total", e.getKey(), e.getValue().getNumErrors());
+            }
+            header(sb, "xzcute_job_running", "gauge", "1 if the job is running now");
+            for (Map.Entry<String, BackgroundExecutor.Job> e : jobs.entrySet()) {
+                line(sb, "xzcute_job_running", e.getKey(), e.getValue().isRunning() ? 1 : 0);
+            }
+            header(sb, "xzcute_job_last_seconds", "gauge", "How long the last run took, -1 if it hasn't run");
+            for (Map.Entry<String, BackgroundExecutor.Job> e : jobs.entrySet()) {
+                long last = e.getValue().getLastTimeTaken();
+                line(sb, "xzcute_job_last_seconds", e.getKey(), last < 0 ? -1 : seconds(last));
+            }
+            header(sb, "xzcute_job_seconds_total", "counter", "How long all the runs took");
+            for (Map.Entry<String, BackgroundExecutor.Job> e : jobs.entrySet()) {
+                line(sb, "xzcute_job_seconds_total", e.getKey(), seconds(e.getValue().getTotalTimeTaken()));
+            }
+            header(sb, "xzcute_job_last_end_timestamp_seconds", "gauge", "When the last run ended, 0 if it hasn't run");
+            for (Map.Entry<String, BackgroundExecutor.Job> e : jobs.entrySet()) {
+                line(sb, "xzcute_job_last_end_timestamp_seconds", e.getKey(), seconds(e.getValue().getLastEndTime()));
+            }
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * One JSON object per line, e.g.
+     * {"time":1700000000000,"type":"executor","name":"crawl","poolSize":8,...}
+     */
+    public String toJsonLines() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, ExecutorMetrics> e : snapshot().entrySet()) {
+            ExecutorMetrics m = e.getValue();
+            sb.append("{\"time\":").append(m.time)
+              .append(",\"type\":\"executor\",\"name\":\"").append(escape(e.getKey())).append('"')
+              .append(",\"poolSize\":").append(m.poolSize)
+              .append(",\"maxPoolSize\":").append(m.maxPoolSize)
+              .append(",\"activeThreads\":").append(m.activeThreads)
+              .append(",\"queueDepth\":").append(m.queueDepth)
+              .append(",\"completed\":").append(m.completed)
+              .append(",\"exceptions\":").append(m.exceptions)
+              .append(",\"timedOut\":").append(m.timedOut)
+              .append(",\"expected\":").append(m.expected)
+              .append(",\"tasksPerSecond\":").append(m.tasksPerSecond)
+              .append(",\"etcMillis\":").append(m.etcMillis)
+              .append(",\"p50Millis\":").append(m.p50Millis)
+              .append(",\"p90Millis\":").append(m.p90Millis)
+              .append(",\"p99Millis\":").append(m.p99Millis)
+              .append(",\"maxMillis\":").append(m.maxMillis)
+              .append("}\n");
+        }
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, BackgroundExecutor> e : backgroundExecutors.entrySet()) {
+            for (BackgroundExecutor.Job job : e.getValue().getJobs()) {
+                sb.append("{\"time\":").append(now)
+                  .append(",\"type\":\"job\",\"executor\":\"").append(escape(e.getKey())).append('"')
+                  .append(",\"name\":\"").append(escape(job.name)).append('"')
+                  .append(",\"runs\":").append(job.getNumRuns())
+                  .append(",\"errors\":").append(job.getNumErrors())
+                  .append(",\"running\":").append(job.isRunning())
+                  .append(",\"lastMillis\":").append(job.getLastTimeTaken())
+                  .append(",\"totalMillis\":").append(job.getTotalTimeTaken())
+                  .append(",\"lastEndTime\":").append(job.getLastEndTime())
+                  .append("}\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    private Map<String, ExecutorMetrics> snapshot() {
+        Map<String, ExecutorMetrics> snapshots = new ConcurrentSkipListMap<String, ExecutorMetrics>();
+        for (Map.Entry<String, VerboseThreadPoolExecutor> e : executors.entrySet()) {
+            snapshots.put(e.getKey(), e.getValue().getMetrics());
+        }
+        return snapshots;
+    }
+
+    private static void header(StringBuilder sb, String metric, String type, String help) {
+        sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String metric, String label, String value, double v) {
+        line(sb, metric, label + "=\"" + escape(value) + "\"", v);
+    }
+
+    private static void line(StringBuilder sb, String metric, String labels, double v) {
+        sb.append(metric).append('{').append(labels).append("} ");
+        if (v == Math.rint(v) && ! Double.isInfinite(v)) {
+            sb.append((long) v);
+        } else {
+            sb.append(v);
+        }
+        sb.append('\n');
+    }
+
+    private static double seconds(long millis) {
+        return millis / 1000.0;
+    }
+
+    /**
+     * Escapes \, " & newlines and blanks out other control characters,
+     * which makes it safe for both Prometheus label values & JSON strings.
+     */
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '\\': sb.append("\\\\"); break;
+            case '"':  sb.append("\\\""); break;
+            case '\n': sb.append("\\n"); break;
+            default:
+                sb.append(c < 0x20 ? ' ' : c);
+            }
+        }
+        return sb.toString();
+    }
+}
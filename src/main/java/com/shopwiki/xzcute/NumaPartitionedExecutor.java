@@ -0,0 +1,423 @@
+package com.shopwiki.xzcute;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * One VerboseThreadPoolExecutor per NUMA node (see CpuTopology), each with its own queue
+ * and its workers pinned to that node's CPUs (see AffinityThreadFactory).
+ *
+ * A task submitted from one of the workers goes to that worker's node, so whatever it spawns stays near the same memory.
+ * Tasks submitted from anywhere else are spread round-robin, or can be sent to a node explicitly.
+ * A worker only takes tasks from other nodes' queues when its own queue is empty.
+ * Idle workers wait until a task is queued, preferably on their own node, instead of polling the other nodes.
+ *
+ * With a single node this is just one pinned VerboseThreadPoolExecutor.
+ */
+public class NumaPartitionedExecutor extends AbstractExecutorService {
+
+    private static final ThreadLocal<Integer> LOCAL_NODE = new ThreadLocal<Integer>();
+
+    private final CpuTopology topology;
+    private final List<VerboseThreadPoolExecutor> pools;
+    private final AtomicInteger nextNode = new AtomicInteger(0);
+
+    /**
+     * @param builder used as a template for each node's pool, with its own pool size, thread factory & work queue.
+     *                The builder itself isn't changed. It can't have a CheckpointLog, since each pool closes its log when it terminates.
+     * @param threadsPerNode <= 0 for 1 per allowed CPU on the node
+     */
+    public NumaPartitionedExecutor(VerboseThreadPoolExecutorBuilder builder, int threadsPerNode) {
+        this(CpuTopology.get(), builder, threadsPerNode);
+    }
+
+    public NumaPartitionedExecutor(CpuTopology topology, VerboseThreadPoolExecutorBuilder builder, int threadsPerNode) {
+        if (builder.getCheckpointLog() != null) {
+            throw new IllegalArgumentException("A CheckpointLog can't be shared by the nodes' pools");
+        }
+        this.topology = topology;
+        int numNodes = topology.getNumNodes();
+
+        ThreadFactory threadFactory = builder.getThreadFactory();
+        Supplier<BlockingQueue<Runnable>> queueSupplier = builder.getWorkQueueSupplier();
+
+        final List<BlockingQueue<Runnable>> queues = Lists.newArrayList();
+        final List<Idle> idles = Lists.newArrayList();
+        for (int node = 0; node < numNodes; node++) {
+            queues.add(queueSupplier.get());
+            idles.add(new Idle());
+        }
+
+        List<VerboseThreadPoolExecutor> pools = Lists.newArrayList();
+        for (int node = 0; node < numNodes; node++) {
+            final StealingQueue queue = new StealingQueue(node, queues, idles);
+            int numThreads = threadsPerNode > 0 ? threadsPerNode : topology.getCpus(node).size();
+            pools.add(builder.copy()
+                    .setPoolSize(numThreads)
+                    .setThreadFactory(new AffinityThreadFactory(new NodeThreadFactory(threadFactory, node), topology.getCpus(node)))
+                    .setWorkQueueSupplier(new Supplier<BlockingQueue<Runnable>>() {
+                        @Override
+                        public BlockingQueue<Runnable> get() {
+                            return queue;
+                        }
+                    })
+                    .build());
+        }
+        this.pools = ImmutableList.copyOf(pools);
+
+        // Otherwise a node's workers wouldn't exist to steal anything until a task was submitted to it
+        for (VerboseThreadPoolExecutor pool : pools) {
+            pool.prestartAllCoreThreads();
+        }
+    }
+
+    /**
+     * Lets the workers know which node they're on.
+     */
+    private static final class NodeThreadFactory implements ThreadFactory {
+
+        private final ThreadFactory threadFactory;
+        private final int node;
+
+        NodeThreadFactory(ThreadFactory threadFactory, int node) {
+            this.threadFactory = threadFactory;
+            this.node = node;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    LOCAL_NODE.set(node);
+                    runnable.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * Where a node's idle workers wait for a task to be queued on any node.
+     */
+    private static final class Idle {
+
+        private final AtomicInteger numWaiting = new AtomicInteger(0); // only goes up while holding this
+
+        /**
+         * @return false if there was no one to wake
+         */
+        boolean wakeOne() {
+            if (numWaiting.get() == 0) {
+                return false;
+            }
+            synchronized (this) {
+                notify();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A node's own queue, that falls back to taking from the other nodes' queues when it's empty.
+     * Everything except taking only looks at the node's own queue.
+     *
+     * Queuing a task wakes one idle worker, on this node if any are idle, otherwise on the next node along that has one.
+     * A worker counts itself as idle before it checks the queues one last time & waits,
+     * so it either sees the task or gets woken for it.
+     */
+    private static final class StealingQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+        private final BlockingQueue<Runnable> local;
+        private final List<BlockingQueue<Runnable>> others;
+        private final Idle idle;
+        private final List<Idle> othersIdle;
+
+        StealingQueue(int node, List<BlockingQueue<Runnable>> queues, List<Idle> idles) {
+            this.local = queues.get(node);
+            this.idle = idles.get(node);
+            List<BlockingQueue<Runnable>> others = Lists.newArrayList();
+            List<Idle> othersIdle = Lists.newArrayList();
+            for (int i = 1; i < queues.size(); i++) {
+                others.add(queues.get((node + i) % queues.size())); // Each node starts stealing from the next one along
+                othersIdle.add(idles.get((node + i) % queues.size()));
+            }
+            this.others = others;
+            this.othersIdle = othersIdle;
+        }
+
+        private void queued() {
+            if (othersIdle.isEmpty() || idle.wakeOne()) {
+                return;
+            }
+            for (Idle other : othersIdle) {
+                if (other.wakeOne()) {
+                    return;
+                }
+            }
+        }
+
+        private Runnable steal() {
+            for (BlockingQueue<Runnable> other : others) {
+                Runnable task = other.poll();
+                if (task != null) {
+                    return task;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Runnable take() throws InterruptedException {
+            if (others.isEmpty()) {
+                return local.take();
+            }
+            while (true) {
+                Runnable task = poll();
+                if (task != null) {
+                    return task;
+                }
+                synchronized (idle) {
+                    idle.numWaiting.incrementAndGet();
+                    try {
+                        task = poll();
+                        if (task != null) {
+                            return task;
+                        }
+                        idle.wait();
+                    } finally {
+                        idle.numWaiting.decrementAndGet();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+            if (others.isEmpty()) {
+                return local.poll(timeout, unit);
+            }
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (true) {
+                Runnable task = poll();
+                if (task != null) {
+                    return task;
+                }
+                long nanosLeft = deadline - System.nanoTime();
+                if (nanosLeft <= 0) {
+                    return null;
+                }
+                synchronized (idle) {
+                    idle.numWaiting.incrementAndGet();
+                    try {
+                        task = poll();
+                        if (task != null) {
+                            return task;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(idle, nanosLeft);
+                    } finally {
+                        idle.numWaiting.decrementAndGet();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public Runnable poll() {
+            Runnable task = local.poll();
+            return task != null ? task : steal();
+        }
+
+        @Override
+        public Runnable peek() {
+            return local.peek();
+        }
+
+        @Override
+        public boolean offer(Runnable task) {
+            if (! local.offer(task)) {
+                return false;
+            }
+            queued();
+            return true;
+        }
+
+        @Override
+        public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+            if (! local.offer(task, timeout, unit)) {
+                return false;
+            }
+            queued();
+            return true;
+        }
+
+        @Override
+        public void put(Runnable task) throws InterruptedException {
+            local.put(task);
+            queued();
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return local.remainingCapacity();
+        }
+
+        @Override
+        public boolean remove(Object task) {
+            return local.remove(task);
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> c) {
+            return local.drainTo(c);
+        }
+
+        @Override
+        public int drainTo(Collection<? super Runnable> c, int maxElements) {
+            return local.drainTo(c, maxElements);
+        }
+
+        @Override
+        public Iterator<Runnable> iterator() {
+            return local.iterator();
+        }
+
+        @Override
+        public int size() {
+            return local.size();
+        }
+    }
+
+    public CpuTopology getTopology() {
+        return topology;
+    }
+
+    public int getNumNodes() {
+        return pools.size();
+    }
+
+    public VerboseThreadPoolExecutor getPool(int node) {
+        return pools.get(node);
+    }
+
+    /**
+     * @return the node of the current thread, if it's one of the workers, otherwise the next one round-robin
+     */
+    private int pickNode() {
+        Integer node = LOCAL_NODE.get();
+        if (node != null && node < pools.size()) {
+            return node;
+        }
+        return (nextNode.getAndIncrement() & Integer.MAX_VALUE) % pools.size();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        pools.get(pickNode()).execute(task);
+    }
+
+    public void execute(int node, Runnable task) {
+        pools.get(node).execute(task);
+    }
+
+    // Submitted straight to a pool, so it gets the pool's FutureTask (for printing & timeouts)
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return pools.get(pickNode()).submit(task);
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return pools.get(pickNode()).submit(task);
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return pools.get(pickNode()).submit(task, result);
+    }
+
+    public <T> Future<T> submit(int node, Callable<T> task) {
+        return pools.get(node).submit(task);
+    }
+
+    @Override
+    public void shutdown() {
+        for (VerboseThreadPoolExecutor pool : pools) {
+            pool.shutdown();
+        }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks = Lists.newArrayList();
+        for (VerboseThreadPoolExecutor pool : pools) {
+            tasks.addAll(pool.shutdownNow());
+        }
+        return tasks;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        for (VerboseThreadPoolExecutor pool : pools) {
+            if (! pool.isShutdown()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        for (VerboseThreadPoolExecutor pool : pools) {
+            if (! pool.isTerminated()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (VerboseThreadPoolExecutor pool : pools) {
+            if (! pool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getCompletedCount() {
+        int count = 0;
+        for (VerboseThreadPoolExecutor pool : pools) {
+            count += pool.getCompletedCount();
+        }
+        return count;
+    }
+
+    public int getExceptionCount() {
+        int count = 0;
+        for (VerboseThreadPoolExecutor pool : pools) {
+            count += pool.getExceptionCount();
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return topology.toString();
+    }
+}
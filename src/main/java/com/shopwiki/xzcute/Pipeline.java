@@ -0,0 +1,309 @@
+package com.shopwiki.xzcute;
+
+import java.io.PrintStream;
+import java.util.Formatter;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.shopwiki.xzcute.util.Pretty;
+import com.shopwiki.xzcute.util.UTF8;
+
+/**
+ * A multi-stage pipeline (e.g. fetch -> parse -> extract -> write), one VerboseThreadPoolExecutor per stage,
+ * each with its own threads & bounded queue.
+ *
+ * A full queue blocks whoever is adding to it, so a slow stage backs up the stages before it,
+ * all the way back to submit(), instead of everything piling up in memory.
+ *
+ * Every printPeriod it prints one line for the whole pipeline: each stage's throughput, how busy its threads were & how full its queue is,
+ * and which stage is the bottleneck (the last one whose threads are saturated).
+ * With rebalancing on, it also moves a thread from the idlest stage to the bottleneck each period,
+ * keeping the total # of threads the same.
+ */
+public class Pipeline<I> {
+
+    private static final ScheduledExecutorService SCHEDULER = new DaemonScheduledExecutor(1, "Pipeline");
+
+    private static final String SEP = "; ";
+
+    private static final double SATURATED = 0.9; // busy ratio
+
+    /**
+     * Passes items on to the next stage. The last stage's items go nowhere.
+     */
+    public interface Emitter<O> {
+        void emit(O item);
+    }
+
+    public interface Stage<I, O> {
+        /**
+         * Can emit any # of items, including none.
+         */
+        void process(I item, Emitter<O> out) throws Exception;
+    }
+
+    private final List<StageRunner> stages = Lists.newArrayList();
+    private PrintStream printStream = UTF8.out;
+    private long printMillis = TimeUnit.SECONDS.toMillis(10);
+    private boolean printExceptions = true;
+    private boolean rebalance = false;
+
+    private ScheduledFuture<?> printer = null;
+    private long lastStatusTime;
+
+    private final class StageRunner implements Emitter<Object> {
+        final String name;
+        final int index;
+        final int queueCapacity;
+        final Stage<Object, Object> stage;
+        final VerboseThreadPoolExecutor executor;
+
+        // As of the last status
+        int lastDone = 0;
+        long lastBusyMillis = 0;
+        double throughput = 0;
+        double busyRatio = 0;
+        double queueFill = 0;
+
+        StageRunner(String name, int index, int threads, int queueCapacity, Stage<Object, Object> stage) {
+            this.name = name;
+            this.index = index;
+            this.queueCapacity = queueCapacity;
+            this.stage = stage;
+            this.executor = VerboseThreadPoolExecutor.builder()
+                    .setPoolSize(threads)
+                    .setWorkQueueCapacity(queueCapacity)
+                    .setThreadFactory(DaemonThreadFactory.getInstance("Pipeline-" + name, true))
+                    .setPrint(false)
+                    .build();
+        }
+
+        void submit(final Object item) {
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try {
+                        stage.process(item, StageRunner.this);
+                        return null;
+                    } catch (Exception e) {
+                        if (printExceptions) {
+                            printStream.println(name + SEP + item);
+                            e.printStackTrace(printStream);
+                        }
+                        throw e;
+                    }
+                }
+
+                @Override
+                public String toString() {
+                    return name + SEP + item;
+                }
+            });
+        }
+
+        /**
+         * Blocks while the next stage's queue is full.
+         */
+        @Override
+        public void emit(Object item) {
+            if (index + 1 < stages.size()) {
+                stages.get(index + 1).submit(item);
+            }
+        }
+
+        void update(long intervalMillis) {
+            ExecutorMetrics metrics = executor.getMetrics();
+            int done = metrics.getDone();
+            long busyMillis = metrics.totalMillis;
+            if (intervalMillis > 0) {
+                throughput = (done - lastDone) * 1000.0 / intervalMillis;
+                busyRatio = Math.min(1.0, (double) (busyMillis - lastBusyMillis) / (intervalMillis * executor.getMaximumPoolSize()));
+            }
+            queueFill = (double) metrics.queueDepth / queueCapacity;
+            lastDone = done;
+            lastBusyMillis = busyMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s/s, %d threads %.0f%% busy, queue %.0f%% full",
+                    name, Pretty.metric(throughput), executor.getMaximumPoolSize(), 100 * busyRatio, 100 * queueFill);
+        }
+    }
+
+    /**
+     * Stages run in the order they're added.
+     *
+     * @param queueCapacity how many items can wait for this stage before whoever is adding them blocks
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Pipeline<I> addStage(String name, int threads, int queueCapacity, Stage<?, ?> stage) {
+        if (printer != null) {
+            throw new IllegalStateException("Already started");
+        }
+        stages.add(new StageRunner(name, stages.size(), threads, queueCapacity, (Stage<Object, Object>) stage));
+        return this;
+    }
+
+    public Pipeline<I> setPrintStream(PrintStream printStream) {
+        this.printStream = printStream;
+        return this;
+    }
+
+    public Pipeline<I> setPrintPeriod(long period, TimeUnit unit) {
+        this.printMillis = unit.toMillis(period);
+        return this;
+    }
+
+    public Pipeline<I> setPrintExceptions(boolean printExceptions) {
+        this.printExceptions = printExceptions;
+        return this;
+    }
+
+    public Pipeline<I> setRebalance(boolean rebalance) {
+        this.rebalance = rebalance;
+        return this;
+    }
+
+    public synchronized Pipeline<I> start() {
+        if (stages.isEmpty()) {
+            throw new IllegalStateException("No stages");
+        }
+        if (printer != null) {
+            throw new IllegalStateException("Already started");
+        }
+        lastStatusTime = System.currentTimeMillis();
+        printer = SCHEDULER.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                printStream.println(getStatus());
+                if (rebalance) {
+                    rebalance();
+                }
+            }
+        }, printMillis, printMillis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Blocks while the first stage's queue is full.
+     */
+    public void submit(I item) {
+        if (printer == null) {
+            throw new IllegalStateException("Not started");
+        }
+        stages.get(0).submit(item);
+    }
+
+    /**
+     * Lets every stage finish what it has, first to last, then prints the final status.
+     *
+     * @return false if it timed out
+     */
+    public boolean finish(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        try {
+            for (StageRunner stage : stages) {
+                stage.executor.shutdown();
+                if (! stage.executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            synchronized (this) {
+                if (printer != null) {
+                    printer.cancel(false);
+                }
+            }
+            printStream.println(getStatus());
+        }
+    }
+
+    public List<VerboseThreadPoolExecutor> getExecutors() {
+        List<VerboseThreadPoolExecutor> executors = Lists.newArrayList();
+        for (StageRunner stage : stages) {
+            executors.add(stage.executor);
+        }
+        return ImmutableList.copyOf(executors);
+    }
+
+    /**
+     * Each stage's stats are since the last call.
+     */
+    public synchronized String getStatus() {
+        long now = System.currentTimeMillis();
+        for (StageRunner stage : stages) {
+            stage.update(now - lastStatusTime);
+        }
+        lastStatusTime = now;
+
+        Formatter formatter = new Formatter();
+        formatter.format("%1$tF %1$tT.%1$tL", now);
+        for (StageRunner stage : stages) {
+            formatter.format(SEP + "%s", stage);
+        }
+        StageRunner bottleneck = getBottleneck();
+        if (bottleneck != null) {
+            formatter.format(SEP + "bottleneck: %s", bottleneck.name);
+        }
+        return formatter.toString();
+    }
+
+    /**
+     * Time a stage spends blocked on the next stage's full queue counts as busy,
+     * so every stage before the bottleneck looks saturated too.
+     *
+     * @return the last stage that's saturated, otherwise the busiest stage, or null if none were busy
+     */
+    private StageRunner getBottleneck() {
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            if (stages.get(i).busyRatio >= SATURATED) {
+                return stages.get(i);
+            }
+        }
+        StageRunner bottleneck = null;
+        for (StageRunner stage : stages) {
+            if (stage.busyRatio > 0 && (bottleneck == null || stage.busyRatio > bottleneck.busyRatio)) {
+                bottleneck = stage;
+            }
+        }
+        return bottleneck;
+    }
+
+    /**
+     * Moves a thread from the idlest stage to the bottleneck, if the bottleneck is saturated & backed up
+     * and the idlest stage is less than half busy.
+     */
+    private synchronized void rebalance() {
+        StageRunner bottleneck = getBottleneck();
+        if (bottleneck == null || bottleneck.busyRatio < SATURATED || bottleneck.queueFill < 0.5) {
+            return;
+        }
+
+        StageRunner donor = null;
+        for (StageRunner stage : stages) {
+            if (stage != bottleneck && stage.executor.getMaximumPoolSize() > 1
+                    && (donor == null || stage.busyRatio < donor.busyRatio)) {
+                donor = stage;
+            }
+        }
+        if (donor == null || donor.busyRatio >= 0.5) {
+            return;
+        }
+
+        // Shrink core first & grow max first, since core can't be more than max
+        int donorSize = donor.executor.getMaximumPoolSize() - 1;
+        donor.executor.setCorePoolSize(donorSize);
+        donor.executor.setMaximumPoolSize(donorSize);
+        int size = bottleneck.executor.getMaximumPoolSize() + 1;
+        bottleneck.executor.setMaximumPoolSize(size);
+        bottleneck.executor.setCorePoolSize(size);
+        printStream.println("Moved a thread from " + donor.name + " to " + bottleneck.name);
+    }
+}
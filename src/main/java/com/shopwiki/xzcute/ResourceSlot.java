@@ -0,0 +1,142 @@
+package com.shopwiki.xzcute;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+
+/**
+ * A heavy scratch object (a parser, MessageDigest, big byte[], DecimalFormat, ...) that each
+ * VerboseThreadPoolExecutor worker creates once & reuses for every task it runs, instead of every task allocating its own.
+ *
+ * After each task, reset() is called on the resources that task used, so no state leaks from one task to the next.
+ * When the worker exits, close() is called on all of them & they're dropped along with the thread,
+ * so unlike a plain ThreadLocal nothing outlives the pool.
+ * Off a worker thread, get() creates a new resource every time.
+ *
+ * Slots are meant to be static finals, e.g.
+ *
+ * private static final ResourceSlot<MessageDigest> MD5 = new ResourceSlot<MessageDigest>() {
+ *     protected MessageDigest create() { return MessageDigest.getInstance("MD5"); }
+ *     protected void reset(MessageDigest md5) { md5.reset(); }
+ * };
+ */
+public abstract class ResourceSlot<T> {
+
+    // Only set while a VerboseThreadPoolExecutor worker is running
+    private static final ThreadLocal<Worker> WORKER = new ThreadLocal<Worker>();
+
+    private static final class Entry {
+        final ResourceSlot<?> slot;
+        final Object resource;
+        boolean used = false; // since the last reset
+
+        Entry(ResourceSlot<?> slot, Object resource) {
+            this.slot = slot;
+            this.resource = resource;
+        }
+    }
+
+    private static final class Worker {
+        final Map<ResourceSlot<?>, Entry> entries = new IdentityHashMap<ResourceSlot<?>, Entry>();
+        final List<Entry> used = Lists.newArrayList();
+    }
+
+    /**
+     * For resources that don't need resetting or closing.
+     */
+    public static <T> ResourceSlot<T> of(final Supplier<T> supplier) {
+        return new ResourceSlot<T>() {
+            @Override
+            protected T create() {
+                return supplier.get();
+            }
+        };
+    }
+
+    protected abstract T create();
+
+    /**
+     * Called after each task that used the resource. If it throws, the resource is closed & a new one is created next time.
+     */
+    protected void reset(T resource) {
+        // Nothing to do by default
+    }
+
+    /**
+     * Called when the worker exits.
+     */
+    protected void close(T resource) {
+        // Nothing to do by default
+    }
+
+    @SuppressWarnings("unchecked")
+    public final T get() {
+        Worker worker = WORKER.get();
+        if (worker == null) {
+            return create(); // Not on a worker, so there's nowhere to keep it
+        }
+        Entry entry = worker.entries.get(this);
+        if (entry == null) {
+            entry = new Entry(this, create());
+            worker.entries.put(this, entry);
+        }
+        if (! entry.used) {
+            entry.used = true;
+            worker.used.add(entry);
+        }
+        return (T) entry.resource;
+    }
+
+    /**
+     * Runs a worker thread's loop, then closes all its resources.
+     */
+    static void runWorker(Runnable runnable) {
+        Worker worker = new Worker();
+        WORKER.set(worker);
+        try {
+            runnable.run();
+        } finally {
+            WORKER.remove();
+            for (Entry entry : worker.entries.values()) {
+                closeQuietly(entry);
+            }
+        }
+    }
+
+    /**
+     * Resets the resources used by the task that just finished on this worker.
+     */
+    static void resetUsed() {
+        Worker worker = WORKER.get();
+        if (worker == null || worker.used.isEmpty()) {
+            return;
+        }
+        for (Entry entry : worker.used) {
+            entry.used = false;
+            try {
+                reset(entry);
+            } catch (RuntimeException e) {
+                worker.entries.remove(entry.slot);
+                closeQuietly(entry);
+            }
+        }
+        worker.used.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void reset(Entry entry) {
+        ((ResourceSlot<T>) entry.slot).reset((T) entry.resource);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void closeQuietly(Entry entry) {
+        try {
+            ((ResourceSlot<T>) entry.slot).close((T) entry.resource);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
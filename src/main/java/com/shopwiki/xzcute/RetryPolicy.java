@@ -0,0 +1,167 @@
+package com.shopwiki.xzcute;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.base.Supplier;
+
+/**
+ * Retries failed tasks with exponential backoff and full jitter:
+ * before attempt n+1 it waits a random time between 0 and min(maxDelay, baseDelay * 2^(n-1)).
+ *
+ * wrap() turns a Callable into one that retries, e.g. for a VerboseThreadPoolExecutor.
+ * (It sleeps between attempts, so it holds on to its worker thread while backing off.)
+ * An interrupt (a task timeout, the StallDetector, shutdownNow()...) is never retried:
+ * the task stops right away, even mid-backoff, with the thread's interrupt flag still set.
+ * retryAsync() does the same for tasks that return a CompletableFuture, without blocking any thread.
+ */
+public class RetryPolicy {
+
+    public final int maxAttempts;
+    public final long baseDelayMillis;
+    public final long maxDelayMillis;
+    private final Predicate<Throwable> retryOn;
+
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, TimeUnit unit) {
+        this(maxAttempts, unit.toMillis(baseDelay), unit.toMillis(maxDelay), Predicates.<Throwable>alwaysTrue());
+    }
+
+    private RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, Predicate<Throwable> retryOn) {
+        if (maxAttempts < 1 || baseDelayMillis < 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException();
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.retryOn = retryOn;
+    }
+
+    /**
+     * @return a copy that only retries failures matching the predicate
+     */
+    public RetryPolicy retryOn(Predicate<Throwable> retryOn) {
+        return new RetryPolicy(maxAttempts, baseDelayMillis, maxDelayMillis, retryOn);
+    }
+
+    /**
+     * @param attempt the attempt that just failed, starting at 1
+     */
+    public boolean shouldRetry(int attempt, Throwable t) {
+        return attempt < maxAttempts && ! isInterrupt(t) && retryOn.apply(t);
+    }
+
+    private static boolean isInterrupt(Throwable t) {
+        return t instanceof InterruptedException
+            || t instanceof CancellationException
+            || (t instanceof CompletionException && t.getCause() instanceof InterruptedException);
+    }
+
+    /**
+     * @param attempt the attempt that just failed, starting at 1
+     */
+    public long delayMillis(int attempt) {
+        long cap = baseDelayMillis << Math.min(attempt - 1, 30);
+        if (cap <= 0 || cap > maxDelayMillis) {
+            cap = maxDelayMillis;
+        }
+        return cap == 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    public <V> Callable<V> wrap(Callable<V> callable) {
+        return new RetryingCallable<V>(callable, this);
+    }
+
+    public static class RetryingCallable<V> implements Callable<V> {
+
+        private final Callable<V> callable;
+        private final RetryPolicy policy;
+
+        public RetryingCallable(Callable<V> callable, RetryPolicy policy) {
+            this.callable = callable;
+            this.policy = policy;
+        }
+
+        @Override
+        public V call() throws Exception {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    return callable.call();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                } catch (Exception e) {
+                    // Whatever it threw, the task was interrupted, so the caller wants it to stop
+                    if (Thread.currentThread().isInterrupted() || ! policy.shouldRetry(attempt, e)) {
+                        throw e;
+                    }
+                }
+
+                try {
+                    Thread.sleep(policy.delayMillis(attempt));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * So TaskPrinter still sees the original task.
+         */
+        @Override
+        public String toString() {
+            return callable.toString();
+        }
+    }
+
+    /**
+     * @param attempt starts an attempt each time it is called
+     * @param scheduler used to wait out the backoff between attempts
+     */
+    public <V> CompletableFuture<V> retryAsync(Supplier<CompletableFuture<V>> attempt, ScheduledExecutorService scheduler) {
+        CompletableFuture<V> result = new CompletableFuture<V>();
+        retryAsync(attempt, scheduler, 1, result);
+        return result;
+    }
+
+    private <V> void retryAsync(
+            final Supplier<CompletableFuture<V>> attempt,
+            final ScheduledExecutorService scheduler,
+            final int attemptNum,
+            final CompletableFuture<V> result
+            ) {
+        if (result.isDone()) { // cancelled
+            return;
+        }
+        attempt.get().whenComplete(new BiConsumer<V, Throwable>() {
+            @Override
+            public void accept(V value, Throwable t) {
+                if (t == null) {
+                    result.complete(value);
+                } else if (shouldRetry(attemptNum, t)) {
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            retryAsync(attempt, scheduler, attemptNum + 1, result);
+                        }
+                    }, delayMillis(attemptNum), TimeUnit.MILLISECONDS);
+                } else {
+                    result.completeExceptionally(t);
+                }
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "maxAttempts=" + maxAttempts + " baseDelay=" + baseDelayMillis + "ms maxDelay=" + maxDelayMillis + "ms";
+    }
+}
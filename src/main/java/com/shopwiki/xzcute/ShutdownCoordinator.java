@@ -0,0 +1,160 @@
+package com.shopwiki.xzcute;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.shopwiki.xzcute.util.UTF8;
+
+/**
+ * Shuts down a set of executors together, e.g. from a JVM shutdown hook during a rolling restart:
+ * first they all stop taking work, then each drains what it has until one shared deadline,
+ * so a slow one can't make the restart hang & a quick one isn't cut short.
+ * Prints a line per executor with what it didn't get to.
+ *
+ * Tasks that never started go to the UndrainedTasksHandler, if any (e.g. to save them for the next run);
+ * with a CheckpointLog, the next run skips whatever did get done.
+ */
+public class ShutdownCoordinator {
+
+    private static final String SEP = "; ";
+
+    public interface UndrainedTasksHandler {
+        /**
+         * @param tasks see VerboseThreadPoolExecutor.unwrap()
+         */
+        void handle(VerboseThreadPoolExecutor executor, List<Runnable> tasks);
+    }
+
+    private final long timeoutMillis;
+    private final List<VerboseThreadPoolExecutor> executors = Lists.newArrayList();
+    private final List<BackgroundExecutor> backgroundExecutors = Lists.newArrayList();
+    private final List<ExecutorService> others = Lists.newArrayList();
+    private PrintStream printStream = UTF8.out;
+    private UndrainedTasksHandler undrainedTasksHandler = null;
+    private Thread hook = null;
+    private Boolean drained = null; // once shut down
+
+    /**
+     * @param timeout how long everything gets to drain, in total
+     */
+    public ShutdownCoordinator(long timeout, TimeUnit unit) {
+        this.timeoutMillis = unit.toMillis(timeout);
+    }
+
+    public synchronized ShutdownCoordinator add(VerboseThreadPoolExecutor executor) {
+        executors.add(executor);
+        return this;
+    }
+
+    public synchronized ShutdownCoordinator add(BackgroundExecutor executor) {
+        backgroundExecutors.add(executor);
+        return this;
+    }
+
+    /**
+     * For any other executor, e.g. a NumaPartitionedExecutor or a scheduler. Whatever it hasn't started by the deadline is dropped.
+     */
+    public synchronized ShutdownCoordinator add(ExecutorService executor) {
+        if (executor instanceof VerboseThreadPoolExecutor) {
+            return add((VerboseThreadPoolExecutor) executor);
+        }
+        others.add(executor);
+        return this;
+    }
+
+    public ShutdownCoordinator setPrintStream(PrintStream printStream) {
+        this.printStream = printStream;
+        return this;
+    }
+
+    public ShutdownCoordinator setUndrainedTasksHandler(UndrainedTasksHandler undrainedTasksHandler) {
+        this.undrainedTasksHandler = undrainedTasksHandler;
+        return this;
+    }
+
+    /**
+     * Calls shutdown() when the JVM exits, e.g. on SIGTERM.
+     */
+    public synchronized ShutdownCoordinator installShutdownHook() {
+        if (hook == null) {
+            hook = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        shutdown();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }, "ShutdownCoordinator");
+            Runtime.getRuntime().addShutdownHook(hook);
+        }
+        return this;
+    }
+
+    /**
+     * Only the 1st call does anything, e.g. if it's called before the shutdown hook runs.
+     *
+     * @return true if everything drained by the deadline
+     */
+    public synchronized boolean shutdown() throws InterruptedException {
+        if (drained != null) {
+            return drained;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        // Stop all the intake first, so nothing drains into an executor that's already done
+        for (VerboseThreadPoolExecutor executor : executors) {
+            executor.shutdown();
+        }
+        for (BackgroundExecutor executor : backgroundExecutors) {
+            executor.shutdown();
+        }
+        for (ExecutorService executor : others) {
+            executor.shutdown();
+        }
+
+        boolean drained = false;
+        try {
+            drained = drain(deadline);
+        } finally {
+            this.drained = drained;
+        }
+        return drained;
+    }
+
+    private boolean drain(long deadline) throws InterruptedException {
+        boolean drained = true;
+        for (VerboseThreadPoolExecutor executor : executors) {
+            List<Runnable> undrained = executor.shutdownGracefully(millisLeft(deadline), TimeUnit.MILLISECONDS);
+            if (! undrained.isEmpty() || ! executor.isTerminated()) {
+                drained = false;
+            }
+            if (! undrained.isEmpty() && undrainedTasksHandler != null) {
+                undrainedTasksHandler.handle(executor, undrained);
+            }
+        }
+        for (BackgroundExecutor executor : backgroundExecutors) {
+            List<BackgroundExecutor.Job> running = executor.shutdownGracefully(millisLeft(deadline), TimeUnit.MILLISECONDS);
+            for (BackgroundExecutor.Job job : running) {
+                printStream.println("Interrupted background job" + SEP + job.name);
+                drained = false;
+            }
+        }
+        for (ExecutorService executor : others) {
+            if (! executor.awaitTermination(millisLeft(deadline), TimeUnit.MILLISECONDS)) {
+                List<Runnable> dropped = executor.shutdownNow();
+                printStream.println("Shut down at the deadline" + SEP + executor + SEP + dropped.size() + " never started");
+                drained = false;
+            }
+        }
+        return drained;
+    }
+
+    private static long millisLeft(long deadline) {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+}
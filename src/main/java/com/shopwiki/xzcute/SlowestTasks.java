@@ -0,0 +1,83 @@
+package com.shopwiki.xzcute;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.google.common.collect.Lists;
+import com.shopwiki.xzcute.util.Pretty;
+
+/**
+ * The K slowest tasks since the last drain(), kept in a bounded min-heap.
+ * A task that's no slower than the fastest one in a full heap is turned away without taking the lock,
+ * and only the ones that get in are described, so most tasks cost one volatile read.
+ */
+public class SlowestTasks {
+
+    public static final class Entry {
+        public final long millis;
+        public final String task;
+
+        Entry(long millis, String task) {
+            this.millis = millis;
+            this.task = task;
+        }
+
+        @Override
+        public String toString() {
+            return Pretty.time(millis) + "; " + task;
+        }
+    }
+
+    private static final Comparator<Entry> FASTEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Long.compare(a.millis, b.millis);
+        }
+    };
+
+    public final int k;
+
+    private final PriorityQueue<Entry> heap; // guarded by this
+    private volatile long threshold = -1; // the fastest in the heap once it's full
+
+    public SlowestTasks(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.k = k;
+        this.heap = new PriorityQueue<Entry>(k + 1, FASTEST_FIRST);
+    }
+
+    /**
+     * Cheap enough to call for every task.
+     */
+    public boolean isSlowEnough(long millis) {
+        return millis > threshold;
+    }
+
+    public synchronized void add(long millis, String task) {
+        if (! isSlowEnough(millis)) {
+            return;
+        }
+        heap.add(new Entry(millis, task));
+        if (heap.size() > k) {
+            heap.poll();
+        }
+        if (heap.size() == k) {
+            threshold = heap.peek().millis;
+        }
+    }
+
+    /**
+     * @return the slowest first, then starts over
+     */
+    public synchronized List<Entry> drain() {
+        List<Entry> slowest = Lists.newArrayList(heap);
+        Collections.sort(slowest, Collections.reverseOrder(FASTEST_FIRST));
+        heap.clear();
+        threshold = -1;
+        return slowest;
+    }
+}
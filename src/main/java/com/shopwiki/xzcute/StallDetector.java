@@ -0,0 +1,302 @@
+package com.shopwiki.xzcute;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.shopwiki.xzcute.util.Pretty;
+
+/**
+ * A watchdog for a VerboseThreadPoolExecutor.
+ * It reports a stall when no task has finished for stallMillis even though tasks are waiting in the queue,
+ * e.g. when every worker is blocked on the same lock or remote call.
+ *
+ * The report samples each worker's stack via ThreadMXBean and counts the top frames
+ * (the innermost frame outside the JDK) & lock owners the workers are stuck on.
+ * It's printed to the executor's printStream and passed to the callback, if there is one,
+ * which can try to remediate, see growPool() & interruptTasksOlderThan().
+ * While the stall lasts, it's reported again every stallMillis.
+ */
+public class StallDetector {
+
+    private static final ScheduledExecutorService SCHEDULER = new DaemonScheduledExecutor(1, "StallDetector");
+
+    private static final int MAX_STACK_DEPTH = 32;
+
+    public interface Callback {
+        /**
+         * Called on the StallDetector's thread.
+         */
+        void stalled(StallReport report);
+    }
+
+    public static class WorkerSample {
+        public final Thread thread;
+        public final Thread.State state;
+        public final String task;       // null if idle
+        public final long runningMillis; // how long it's been running its task, -1 if idle
+        public final String topFrame;    // innermost frame outside the JDK, or null
+        public final String lockName;    // what it's blocked or waiting on, or null
+        public final String lockOwner;   // the thread holding that lock, or null
+        final Runnable runnable;         // the task itself, to check it's still running before interrupting it
+
+        WorkerSample(Thread thread, Thread.State state, String task, long runningMillis, String topFrame, String lockName, String lockOwner, Runnable runnable) {
+            this.thread = thread;
+            this.state = state;
+            this.task = task;
+            this.runningMillis = runningMillis;
+            this.topFrame = topFrame;
+            this.lockName = lockName;
+            this.lockOwner = lockOwner;
+            this.runnable = runnable;
+        }
+    }
+
+    public static class StallReport {
+        public final VerboseThreadPoolExecutor executor;
+        public final long stalledMillis;
+        public final int queueDepth;
+        public final List<WorkerSample> workers;
+        public final Map<String, Integer> topFrames;  // most common first
+        public final Map<String, Integer> lockOwners; // most common first
+
+        StallReport(VerboseThreadPoolExecutor executor, long stalledMillis, int queueDepth, List<WorkerSample> workers) {
+            this.executor = executor;
+            this.stalledMillis = stalledMillis;
+            this.queueDepth = queueDepth;
+            this.workers = workers;
+
+            Map<String, Integer> frames = Maps.newHashMap();
+            Map<String, Integer> owners = Maps.newHashMap();
+            for (WorkerSample worker : workers) {
+                if (worker.task == null) {
+                    continue;
+                }
+                increment(frames, worker.topFrame != null ? worker.topFrame : "(no frames)");
+                if (worker.lockOwner != null) {
+                    increment(owners, worker.lockOwner + " holds " + worker.lockName);
+                }
+            }
+            this.topFrames = sortByCount(frames);
+            this.lockOwners = sortByCount(owners);
+        }
+
+        @Override
+        public String toString() {
+            int numBusy = 0;
+            for (WorkerSample worker : workers) {
+                if (worker.task != null) {
+                    numBusy++;
+                }
+            }
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("STALLED: no tasks finished in ").append(Pretty.time(stalledMillis))
+              .append("; ").append(queueDepth).append(" queued")
+              .append("; ").append(numBusy).append(" of ").append(workers.size()).append(" workers busy\n");
+            for (Map.Entry<String, Integer> e : topFrames.entrySet()) {
+                sb.append("  ").append(e.getValue()).append(" workers at ").append(e.getKey()).append('\n');
+            }
+            for (Map.Entry<String, Integer> e : lockOwners.entrySet()) {
+                sb.append("  ").append(e.getValue()).append(" workers blocked on ").append(e.getKey()).append('\n');
+            }
+            for (WorkerSample worker : workers) {
+                if (worker.task != null) {
+                    sb.append("  ").append(worker.thread.getName()).append(' ').append(worker.state)
+                      .append(" for ").append(Pretty.time(worker.runningMillis)).append(": ").append(worker.task).append('\n');
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private final VerboseThreadPoolExecutor executor;
+    private final long stallMillis;
+    private Callback callback = null;
+
+    private ScheduledFuture<?> scheduled = null;
+    private long lastProgress = -1;
+    private long lastProgressTime;
+    private long lastReportTime = 0;
+
+    public StallDetector(VerboseThreadPoolExecutor executor, long stallTime, TimeUnit unit) {
+        this.executor = executor;
+        this.stallMillis = unit.toMillis(stallTime);
+    }
+
+    public StallDetector setCallback(Callback callback) {
+        this.callback = callback;
+        return this;
+    }
+
+    /**
+     * Checks for a stall every 1/4 of the stall time. Stops once the executor terminates.
+     */
+    public synchronized StallDetector start() {
+        if (scheduled != null) {
+            throw new IllegalStateException("Already started");
+        }
+        lastProgressTime = System.currentTimeMillis();
+        long period = Math.max(1, stallMillis / 4);
+        scheduled = SCHEDULER.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    check();
+                } catch (RuntimeException e) {
+                    e.printStackTrace(); // Don't let one bad callback stop the checks
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    public synchronized void stop() {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+    }
+
+    synchronized void check() {
+        if (executor.isTerminated()) {
+            stop();
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long progress = executor.getCompletedCount() + executor.getExceptionCount();
+        if (progress != lastProgress) {
+            lastProgress = progress;
+            lastProgressTime = now;
+            lastReportTime = 0;
+            return;
+        }
+
+        int queueDepth = executor.getQueue().size();
+        long stalled = now - lastProgressTime;
+        if (queueDepth == 0 || stalled < stallMillis || now - lastReportTime < stallMillis) {
+            return;
+        }
+        lastReportTime = now;
+
+        StallReport report = new StallReport(executor, stalled, queueDepth, sample(now));
+        executor.printStream.print(report);
+        if (callback != null) {
+            callback.stalled(report);
+        }
+    }
+
+    private List<WorkerSample> sample(long now) {
+        Map<Thread, VerboseThreadPoolExecutor.RunState> states = executor.getRunStates();
+        List<Thread> threads = Lists.newArrayList(states.keySet());
+        long[] ids = new long[threads.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = threads.get(i).getId();
+        }
+
+        ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+        ThreadInfo[] infos = mxBean.getThreadInfo(ids, MAX_STACK_DEPTH);
+
+        List<WorkerSample> samples = Lists.newArrayList();
+        for (int i = 0; i < ids.length; i++) {
+            Thread thread = threads.get(i);
+            ThreadInfo info = infos[i];
+            VerboseThreadPoolExecutor.RunState state = states.get(thread);
+            if (info == null || state == null) {
+                continue; // died since
+            }
+            Runnable task = state.task;
+            samples.add(new WorkerSample(
+                    thread,
+                    info.getThreadState(),
+                    task == null ? null : executor.taskName(task),
+                    task == null ? -1 : now - state.startTime,
+                    topFrame(info.getStackTrace()),
+                    info.getLockName(),
+                    info.getLockOwnerName(),
+                    task));
+        }
+        return ImmutableList.copyOf(samples);
+    }
+
+    private static String topFrame(StackTraceElement[] stack) {
+        for (StackTraceElement frame : stack) {
+            String c = frame.getClassName();
+            if (! c.startsWith("java.") && ! c.startsWith("javax.") && ! c.startsWith("jdk.") && ! c.startsWith("sun.")) {
+                return frame.toString();
+            }
+        }
+        return stack.length > 0 ? stack[0].toString() : null;
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    private static Map<String, Integer> sortByCount(final Map<String, Integer> counts) {
+        List<String> keys = Lists.newArrayList(counts.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return counts.get(b) - counts.get(a);
+            }
+        });
+        Map<String, Integer> sorted = Maps.newLinkedHashMap();
+        for (String key : keys) {
+            sorted.put(key, counts.get(key));
+        }
+        return Collections.unmodifiableMap(sorted);
+    }
+
+    /**
+     * Adds up to "by" threads to the pool on each stall, up to maxPoolSize in total.
+     */
+    public static Callback growPool(final int by, final int maxPoolSize) {
+        return new Callback() {
+            @Override
+            public void stalled(StallReport report) {
+                VerboseThreadPoolExecutor executor = report.executor;
+                int size = Math.min(executor.getMaximumPoolSize() + by, maxPoolSize);
+                if (size > executor.getMaximumPoolSize()) {
+                    executor.printStream.println("Growing pool to " + size + " threads");
+                    // Max first, since core can't be set above it
+                    executor.setMaximumPoolSize(size);
+                    executor.setCorePoolSize(size);
+                }
+            }
+        };
+    }
+
+    /**
+     * Interrupts the workers whose task has been running for longer than the limit.
+     * Only helps if those tasks respond to interruption.
+     * A worker that has finished the sampled task since isn't interrupted,
+     * nor is one running a task passed to execute() instead of submit(), since that can't be checked.
+     */
+    public static Callback interruptTasksOlderThan(long limit, TimeUnit unit) {
+        final long limitMillis = unit.toMillis(limit);
+        return new Callback() {
+            @Override
+            public void stalled(StallReport report) {
+                for (WorkerSample worker : report.workers) {
+                    if (worker.task != null && worker.runningMillis > limitMillis
+                            && report.executor.interruptIfRunning(worker.thread, worker.runnable)) {
+                        report.executor.printStream.println("Interrupted " + worker.thread.getName() + ": " + worker.task);
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,140 @@
+package com.shopwiki.xzcute;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * What VerboseThreadPoolExecutor.submitAsync() returns.
+ * Its *Async() methods run on the same executor unless told otherwise,
+ * and the ones that take a stage name run as tasks of that stage: counted, timed & printed like any other task,
+ * described by the task at the start of the chain.
+ */
+public class VerboseCompletableFuture<T> extends CompletableFuture<T> {
+
+    private final VerboseThreadPoolExecutor executor;
+    final VerboseThreadPoolExecutor.TaskName description; // of the task at the start of the chain
+    private volatile Future<?> task = null; // that completes this, if it was submitted by submitAsync() or a stage
+
+    VerboseCompletableFuture(VerboseThreadPoolExecutor executor, VerboseThreadPoolExecutor.TaskName description) {
+        this.executor = executor;
+        this.description = description;
+    }
+
+    void setTask(Future<?> task) {
+        this.task = task;
+        if (isCancelled()) { // before it was submitted
+            task.cancel(false);
+        }
+    }
+
+    /**
+     * Also cancels the task that would complete this, so it doesn't keep running (or waiting) on a worker.
+     *
+     * @param mayInterruptIfRunning whether to interrupt the task if it's already running
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        Future<?> task = this.task;
+        if (cancelled && task != null) {
+            task.cancel(mayInterruptIfRunning);
+        }
+        return cancelled;
+    }
+
+    public VerboseThreadPoolExecutor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public Executor defaultExecutor() {
+        return executor.asyncExecutor;
+    }
+
+    @Override
+    public <U> CompletableFuture<U> newIncompleteFuture() {
+        return new VerboseCompletableFuture<U>(executor, description);
+    }
+
+    /**
+     * Runs the next stage once this completes normally, with its result.
+     * If this completes exceptionally, so does the returned future, without running anything.
+     */
+    private <U> VerboseCompletableFuture<U> then(final String stage, final Function<? super T, Callable<U>> next) {
+        final VerboseCompletableFuture<U> future = new VerboseCompletableFuture<U>(executor, description);
+        whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable t) {
+                if (t != null) {
+                    future.completeExceptionally(t);
+                } else {
+                    executor.submitStage(stage, description, next.apply(result), future);
+                }
+            }
+        });
+        return future;
+    }
+
+    public <U> VerboseCompletableFuture<U> thenApplyAsync(String stage, final Function<? super T, ? extends U> fn) {
+        return then(stage, new Function<T, Callable<U>>() {
+            @Override
+            public Callable<U> apply(final T result) {
+                return new Callable<U>() {
+                    @Override
+                    public U call() {
+                        return fn.apply(result);
+                    }
+                };
+            }
+        });
+    }
+
+    public VerboseCompletableFuture<Void> thenAcceptAsync(String stage, final Consumer<? super T> action) {
+        return then(stage, new Function<T, Callable<Void>>() {
+            @Override
+            public Callable<Void> apply(final T result) {
+                return new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        action.accept(result);
+                        return null;
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * Only the time fn takes to return its stage counts towards this stage, not the time that stage takes to complete.
+     */
+    public <U> VerboseCompletableFuture<U> thenComposeAsync(String stage, final Function<? super T, ? extends CompletionStage<U>> fn) {
+        final VerboseCompletableFuture<U> future = new VerboseCompletableFuture<U>(executor, description);
+        VerboseCompletableFuture<CompletionStage<U>> composed = thenApplyAsync(stage, fn);
+        composed.whenComplete(new BiConsumer<CompletionStage<U>, Throwable>() {
+            @Override
+            public void accept(CompletionStage<U> next, Throwable t) {
+                if (t != null) {
+                    future.completeExceptionally(t);
+                    return;
+                }
+                next.whenComplete(new BiConsumer<U, Throwable>() {
+                    @Override
+                    public void accept(U result, Throwable t) {
+                        if (t != null) {
+                            future.completeExceptionally(t);
+                        } else {
+                            future.complete(result);
+                        }
+                    }
+                });
+            }
+        });
+        return future;
+    }
+}
@@ -1,10 +1,22 @@
 package com.shopwiki.xzcute;
 
+import java.io.IOException;
 import java.io.PrintStream;
-import java.util.Formatter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.shopwiki.xzcute.jfr.TaskCompletedEvent;
+import com.shopwiki.xzcute.jfr.TaskRejectedEvent;
+import com.shopwiki.xzcute.jfr.TaskStartedEvent;
+import com.shopwiki.xzcute.jfr.TaskSubmittedEvent;
 import com.shopwiki.xzcute.util.Pretty;
 
 /**
@@ -19,9 +31,71 @@ public class VerboseThreadPoolExecutor extends ThreadPoolExecutor {
 
     private final AtomicInteger completedCounter = new AtomicInteger(0);
     private final AtomicInteger exceptionCounter = new AtomicInteger(0);
+    private final AtomicInteger timedOutCounter = new AtomicInteger(0); // also counted as exceptions
     private final AtomicLong lastPrintTime = new AtomicLong(0L);
     private final AtomicLong startTime = new AtomicLong(0L);
 
+    // For getMetrics(), which mustn't take ThreadPoolExecutor's mainLock like getActiveCount() & getPoolSize() do
+    private final AtomicInteger activeCounter = new AtomicInteger(0);
+    private final CountingThreadFactory countingThreadFactory;
+    private final LatencyTracker taskLatencies = new LatencyTracker();
+    private final ThreadLocal<RunState> runState = new ThreadLocal<RunState>() {
+        @Override
+        protected RunState initialValue() {
+            RunState state = new RunState();
+            countingThreadFactory.states.put(Thread.currentThread(), state);
+            return state;
+        }
+    };
+
+    /**
+     * What beforeExecute() leaves for afterExecute() on each worker thread.
+     * Other threads (e.g. a StallDetector) can see what each worker is running.
+     */
+    static final class RunState {
+        volatile long startTime;
+        volatile Runnable task; // null when the worker is idle
+        TaskCompletedEvent event; // only if JFR is recording it
+    }
+
+    // One timer thread shared by every executor enforces all the task timeouts
+    private static final DaemonScheduledExecutor TIMEOUTS = new DaemonScheduledExecutor(1, "VerboseThreadPoolExecutor-timeouts");
+    static {
+        TIMEOUTS.setRemoveOnCancelPolicy(true); // Most tasks finish in time, so don't keep their timeouts around
+    }
+
+    // Completes the futures of tasks that timed out, so their dependent stages don't run on (& hold up) the TIMEOUTS thread
+    private static final int NUM_TIMED_OUT_THREADS = 2;
+    private static final ThreadPoolExecutor TIMED_OUT = new ThreadPoolExecutor(
+            NUM_TIMED_OUT_THREADS, NUM_TIMED_OUT_THREADS,
+            1L, TimeUnit.MINUTES,
+            new LinkedBlockingQueue<Runnable>(),
+            DaemonThreadFactory.getInstance("VerboseThreadPoolExecutor-timed-out", true));
+    static {
+        TIMED_OUT.allowCoreThreadTimeOut(true);
+    }
+
+    private volatile long taskTimeoutMillis = 0L; // 0 for none
+    private volatile boolean timeoutStackTraces = false;
+    private volatile List<ContextPropagator<?>> contextPropagators = ImmutableList.of();
+    private volatile CheckpointLog checkpointLog = null;
+    private volatile AdmissionController admissionController = null;
+    private volatile int verboseSampleRate = 1;
+    private final AtomicLong numPrinted = new AtomicLong(0);
+    private volatile SlowestTasks slowestTasks = null;
+
+    /**
+     * What a task's Future fails with if it runs for longer than its timeout.
+     * With setTimeoutStackTraces(true), its stack trace is where the task was when it timed out.
+     */
+    public static class TaskTimeoutException extends TimeoutException {
+        private static final long serialVersionUID = 1L;
+
+        public TaskTimeoutException(String message) {
+            super(message);
+        }
+    }
+
     public final boolean print;
     public final PrintStream printStream;
     public final int tasksPerPrint;
@@ -30,8 +104,7 @@ public class VerboseThreadPoolExecutor extends ThreadPoolExecutor {
     public final boolean printExceptions;
     public final int expectedNumTasks;
 
-    private final String printWidth;
-    private final String countsFormat;
+    private final int printWidth; // digits in the counts
 
     public static class TaskPrinter<P> {
         public String taskToString(Object task) {
@@ -44,6 +117,24 @@ public class VerboseThreadPoolExecutor extends ThreadPoolExecutor {
     }
 
     private final TaskPrinter taskPrinter; // Can't get generics working here :(
+    private final Supplier<String> statusSupplier;
+
+    /**
+     * Counts & timings for the tasks of one named stage, see submitAsync().
+     */
+    public static final class StageStats {
+        public final AtomicInteger completed = new AtomicInteger(0);
+        public final AtomicInteger failed = new AtomicInteger(0);
+        public final LatencyTracker latencies = new LatencyTracker();
+
+        @Override
+        public String toString() {
+            return completed.get() + " done, " + failed.get() + " failed, p50 " + Pretty.time(latencies.percentile(0.5));
+        }
+    }
+
+    // In the order the stages were first run
+    private final Map<String, StageStats> stageStats = Collections.synchronizedMap(Maps.<String, StageStats>newLinkedHashMap());
 
     public VerboseThreadPoolExecutor(
             int corePoolSize,
@@ -62,8 +153,35 @@ public class VerboseThreadPoolExecutor extends ThreadPoolExecutor {
             int expectedNumTasks,
             TaskPrinter<?> taskPrinter
             ) {
+        this(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory, handler,
+                print, printStream, tasksPerPrint, millisPerPrint, verbosePrint, printExceptions, expectedNumTasks, taskPrinter,
+                null);
+    }
 
-        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, threadFactory, handler);
+    /**
+     * @param statusSupplier if not null, what it returns is appended to every status line
+     */
+    public VerboseThreadPoolExecutor(
+            int corePoolSize,
+            int maximumPoolSize,
+            long keepAliveTime,
+            TimeUnit unit,
+            BlockingQueue<Runnable> workQueue,
+            ThreadFactory threadFactory,
+            RejectedExecutionHandler handler,
+            boolean print,
+            PrintStream printStream,
+            int tasksPerPrint,
+            long millisPerPrint,
+            boolean verbosePrint,
+            boolean printExceptions,
+            int expectedNumTasks,
+            TaskPrinter<?> taskPrinter,
+            Supplier<String> statusSupplier
+            ) {
+
+        super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue, new CountingThreadFactory(threadFactory), new RecordingRejectedExecutionHandler(handler));
+        this.countingThreadFactory = (CountingThreadFactory) getThreadFactory();
         this.print = print;
         this.printStream = printStream;
         this.tasksPerPrint = tasksPerPrint;
@@ -72,16 +190,35 @@ public class VerboseThreadPoolExecutor extends ThreadPoolExecutor {
         this.printExceptions = printExceptions;
         this.expectedNumTasks = expectedNumTasks;
         int numTasksDigits = expectedNumTasks > 0 ? String.valueOf(expectedNumTasks).length() : 10;
-        this.printWidth = numTasksDigits + "d";
-        this.countsFormat = "%1$tF %1$tT.%1$tL %2$" + printWidth + " tasks complete" + SEP + "%3$" + printWidth + " exceptions";
+        this.printWidth = numTasksDigits;
         this.taskPrinter = taskPrinter;
+        this.statusSupplier = statusSupplier;
     }
 
     private static final String SEP = "; ";
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 
     private class FutureTaskWithCallable<V> extends FutureTask<V> {
 
-        private Object callable = null;
+        // Dropped once the task has run, so a Future that's kept around doesn't keep the task's inputs too
+        private volatile Object callable = null;
+        private boolean onWorker = false; // as opposed to run by a RejectedExecutionHandler, without afterExecute()
+        private boolean discardResult = false;
+        private final long submitTime = System.currentTimeMillis();
+        private volatile long timeoutMillis = taskTimeoutMillis;
+        private long checkpointId = -1; // none
+        private AdmissionController admission = null; // guarded by this, until the weight is released
+        private long weight = 0;
+
+        // Captured on the submitting thread
+        private final List<ContextPropagator<?>> propagators = contextPropagators;
+        private Object[] contexts = capture(propagators);
+        private Object[] workerContexts = null; // what the worker had before the task
+
+        // Guarded by this, so a late timeout (or StallDetector) can't interrupt the worker once it has moved on to another task
+        private Thread runner = null;
+        private ScheduledFuture<?> timeout = null;
+        private volatile boolean timingOut = false; // done() is being called from the TIMEOUTS thread
 
         public FutureTaskWithCallable(Callable<V> callable) {
             super(callable);
@@ -95,6 +232,9 @@ public class VerboseThreadPoolExecutor extends ThreadPoolExecutor {
 
         @Override
         public String toString() {
+            if (! isDone()) {
+                return String.valueOf(taskName(this)); // Not get(), which would block
+            }
             String message;
             try {
                 message = taskPrinter.resultToString(this.get());
@@ -104,33 +244,804 @@ public class VerboseThreadPoolExecutor extends ThreadPoolExecutor {
                 Throwable cause = e.getCause();
                 message = cause != null ? cause.toString() : e.toString();
             }
-            return taskPrinter.taskToString(callable) + SEP + message;
+            Object callable = this.callable;
+            return callable != null ? taskPrinter.taskToString(callable) + SEP + message : message;
+        }
+
+        /**
+         * Drops what the task no longer needs once it has run & been printed, if it was.
+         * After this, toString() only has the result.
+         */
+        void ran() {
+            callable = null;
+            contexts = null;
+        }
+
+        @Override
+        protected void set(V result) {
+            super.set(discardResult ? null : result);
+        }
+
+        /**
+         * Blocks until the task fits in the admission controller's budget, if there is one.
+         * Never blocks one of our own workers, which may be the only ones that can release weight.
+         */
+        void admit() {
+            AdmissionController controller = admissionController;
+            if (controller != null) {
+                boolean onOwnWorker = countingThreadFactory.states.containsKey(Thread.currentThread());
+                weight = controller.admit(callable, ! onOwnWorker);
+                if (weight > 0) {
+                    admission = controller;
+                }
+            }
+        }
+
+        /**
+         * Only the 1st call does anything.
+         */
+        synchronized void releaseWeight() {
+            if (admission != null) {
+                admission.release(weight);
+                admission = null;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                releaseWeight();
+                if (! onWorker) {
+                    ran(); // afterExecute() won't be called
+                }
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void done() {
+            if (isCancelled() && callable instanceof NotRunListener) {
+                ((NotRunListener) callable).notRun(new CancellationException("Cancelled"));
+            }
+            if (! (callable instanceof StageTask)) {
+                return;
+            }
+            final StageTask<V> stage = (StageTask<V>) callable;
+            if (! timingOut) {
+                stage.done(this);
+                return;
+            }
+            TIMED_OUT.execute(new Runnable() {
+                @Override
+                public void run() {
+                    stage.done(FutureTaskWithCallable.this);
+                }
+            });
+        }
+
+        void applyContexts() {
+            if (contexts != null) {
+                workerContexts = apply(propagators, contexts);
+            }
+        }
+
+        void restoreContexts() {
+            if (workerContexts != null) {
+                apply(propagators, workerContexts);
+                workerContexts = null;
+            }
+        }
+
+        synchronized void started(Thread thread) {
+            runner = thread;
+            if (timeoutMillis <= 0) {
+                return;
+            }
+            timeout = TIMEOUTS.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timedOut();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void finished() {
+            runner = null;
+            if (timeout != null) {
+                timeout.cancel(false);
+                timeout = null;
+            }
+        }
+
+        /**
+         * Fails the Future right away, then interrupts the task if it's still running.
+         * The worker is only freed up once the task notices the interrupt.
+         * The Future is failed outside the lock & its dependent stages are completed on TIMED_OUT,
+         * since this runs on the one TIMEOUTS thread that every executor's timeouts share.
+         */
+        private void timedOut() {
+            Thread thread;
+            StackTraceElement[] stackTrace = null;
+            synchronized (this) {
+                thread = runner;
+                if (thread == null || isDone()) {
+                    return;
+                }
+                if (timeoutStackTraces) {
+                    stackTrace = thread.getStackTrace(); // Under the lock, so it's this task's stack
+                }
+            }
+
+            TaskTimeoutException e = new TaskTimeoutException("Timed out after " + Pretty.time(timeoutMillis));
+            if (stackTrace != null) {
+                e.setStackTrace(stackTrace);
+            }
+            timingOut = true;
+            setException(e);
+
+            synchronized (this) {
+                if (runner == thread) {
+                    thread.interrupt();
+                }
+            }
+        }
+
+        /**
+         * @return false if the thread isn't running this task anymore
+         */
+        synchronized boolean interrupt(Thread thread) {
+            if (runner != thread || isDone()) {
+                return false;
+            }
+            thread.interrupt();
+            return true;
         }
     }
 
     @Override
     protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
         startTime.compareAndSet(0L, System.currentTimeMillis());
-        return new FutureTaskWithCallable<T>(callable);
+        return submitted(new FutureTaskWithCallable<T>(callable));
     }
 
     @Override
     protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
         startTime.compareAndSet(0L, System.currentTimeMillis());
-        return new FutureTaskWithCallable<T>(runnable, value);
+        return submitted(new FutureTaskWithCallable<T>(runnable, value));
+    }
+
+    /**
+     * Like submit(), but the task gets this timeout instead of the executor's one (see setTaskTimeout()).
+     */
+    public <T> Future<T> submit(Callable<T> task, long timeout, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        FutureTaskWithCallable<T> future = (FutureTaskWithCallable<T>) newTaskFor(task);
+        future.timeoutMillis = unit.toMillis(timeout);
+        execute(future);
+        return future;
+    }
+
+    public Future<?> submit(Runnable task, long timeout, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        FutureTaskWithCallable<Object> future = (FutureTaskWithCallable<Object>) newTaskFor(task, null);
+        future.timeoutMillis = unit.toMillis(timeout);
+        execute(future);
+        return future;
+    }
+
+    /**
+     * Tasks submitted after this that run for longer than the timeout (not counting time in the queue)
+     * fail with a TaskTimeoutException & get interrupted.
+     * Tasks passed straight to execute() never time out.
+     *
+     * @param timeout 0 for none
+     */
+    public void setTaskTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException();
+        }
+        taskTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    public long getTaskTimeoutMillis() {
+        return taskTimeoutMillis;
+    }
+
+    /**
+     * @param timeoutStackTraces true for TaskTimeoutExceptions to have the stack trace of where the task was when it timed out,
+     *                           which costs a safepoint per timeout
+     */
+    public void setTimeoutStackTraces(boolean timeoutStackTraces) {
+        this.timeoutStackTraces = timeoutStackTraces;
+    }
+
+    public boolean getTimeoutStackTraces() {
+        return timeoutStackTraces;
+    }
+
+    /**
+     * Makes this a resumable run: tasks submitted with an ID are added to the log when they complete (not when they fail),
+     * and the tasks already in it are skipped, see submit(long id, Callable).
+     * The progress & ETC count the tasks carried over from the run that wrote the log.
+     * The log is closed when this executor terminates.
+     */
+    public void setCheckpointLog(CheckpointLog checkpointLog) {
+        this.checkpointLog = checkpointLog;
+    }
+
+    public CheckpointLog getCheckpointLog() {
+        return checkpointLog;
+    }
+
+    /**
+     * Like submit(), but if the task already completed in an earlier run, according to the checkpoint log,
+     * it's skipped & the returned future's result is null.
+     *
+     * @param id the same for this task in every run, e.g. its line # in the input file
+     */
+    public <T> Future<T> submit(long id, Callable<T> task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        CheckpointLog log = checkpointLog;
+        if (log == null) {
+            throw new IllegalStateException("No checkpoint log");
+        }
+        if (log.contains(id)) {
+            return Futures.immediateFuture(null);
+        }
+        FutureTaskWithCallable<T> future = (FutureTaskWithCallable<T>) newTaskFor(task);
+        future.checkpointId = id;
+        execute(future);
+        return future;
+    }
+
+    public Future<?> submit(long id, Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        CheckpointLog log = checkpointLog;
+        if (log == null) {
+            throw new IllegalStateException("No checkpoint log");
+        }
+        if (log.contains(id)) {
+            return Futures.immediateFuture(null);
+        }
+        FutureTaskWithCallable<Object> future = (FutureTaskWithCallable<Object>) newTaskFor(task, null);
+        future.checkpointId = id;
+        execute(future);
+        return future;
+    }
+
+    /**
+     * @return how many tasks were already complete before this run, according to the checkpoint log
+     */
+    public int getCarriedOverCount() {
+        CheckpointLog log = checkpointLog;
+        return log == null ? 0 : log.getNumCarriedOver();
+    }
+
+    private void checkpoint(Runnable runnable) {
+        if (! (runnable instanceof FutureTaskWithCallable)) {
+            return;
+        }
+        long id = ((FutureTaskWithCallable<?>) runnable).checkpointId;
+        CheckpointLog log = checkpointLog;
+        if (id < 0 || log == null) {
+            return;
+        }
+        try {
+            log.add(id);
+        } catch (IOException e) {
+            e.printStackTrace(); // The task will just be redone next time
+        }
+    }
+
+    /**
+     * Like submit(), for when nobody needs the task's result: the returned Future's get() returns null once the task has run,
+     * and neither it nor the task are kept, so a batch of any size can hang on to its Futures (e.g. to wait for them)
+     * without holding on to all its inputs & outputs.
+     */
+    public Future<?> submitWithoutResult(Callable<?> task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        @SuppressWarnings("unchecked")
+        FutureTaskWithCallable<Object> future = (FutureTaskWithCallable<Object>) newTaskFor((Callable<Object>) task);
+        future.discardResult = true;
+        execute(future);
+        return future;
+    }
+
+    /**
+     * With verbosePrint, only every n-th status line gets the task (& its result) appended,
+     * since rendering them for every line is too much at high throughput.
+     *
+     * @param n 1 for every line
+     */
+    public void setVerboseSampleRate(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException();
+        }
+        verboseSampleRate = n;
+    }
+
+    public int getVerboseSampleRate() {
+        return verboseSampleRate;
+    }
+
+    /**
+     * After each status line, prints the k slowest tasks since the last one & how long each took.
+     * Only those k tasks are described, so this is cheap even when most lines aren't verbose.
+     *
+     * @param k 0 for none
+     */
+    public void setSlowestTasksPerPrint(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException();
+        }
+        slowestTasks = k == 0 ? null : new SlowestTasks(k);
+    }
+
+    /**
+     * @return null unless setSlowestTasksPerPrint() was called
+     */
+    public SlowestTasks getSlowestTasks() {
+        return slowestTasks;
     }
 
+    /**
+     * Tasks submitted after this are admitted by their weight, see AdmissionController.
+     * Tasks passed straight to execute() aren't weighed.
+     */
+    public void setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Stops taking tasks, lets the queued & running ones finish until the timeout,
+     * then interrupts whatever's still running & returns the tasks that never started (as shutdownNow() does),
+     * e.g. to save them for the next run. Tasks completed so far are synced to the checkpoint log, if there is one,
+     * so with submit(long id, ...) the next run redoes only what didn't get done.
+     * Then prints a final status line (if print).
+     *
+     * @return the tasks that never started, see unwrap()
+     */
+    public List<Runnable> shutdownGracefully(long timeout, TimeUnit unit) throws InterruptedException {
+        shutdown();
+        List<Runnable> undrained = ImmutableList.of();
+        if (! awaitTermination(timeout, unit)) {
+            undrained = shutdownNow();
+            CheckpointLog log = checkpointLog;
+            if (log != null) {
+                try {
+                    log.sync();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (print) {
+            String summary = "Shut down " + (undrained.isEmpty() ? "cleanly" : "at the deadline") + SEP + getStatus();
+            int running = activeCounter.get();
+            if (running > 0) {
+                summary += SEP + running + " still running";
+            }
+            if (! undrained.isEmpty()) {
+                summary += SEP + undrained.size() + " never started";
+            }
+            printStream.println(summary);
+        }
+        return undrained;
+    }
+
+    /**
+     * @return the Callable or Runnable that was submitted, for a task that hasn't run yet (e.g. from shutdownNow()),
+     *         null for one that has, or the task itself if it was passed straight to execute()
+     */
+    public Object unwrap(Runnable task) {
+        if (task instanceof FutureTaskWithCallable) {
+            return ((FutureTaskWithCallable<?>) task).callable;
+        }
+        return task;
+    }
+
+    /**
+     * A submitted task that's told if it's never going to run (or finish):
+     * its Future was cancelled, or it was still queued when shutdownNow() was called.
+     * E.g. a batch that fails the futures of its items, see BatchingExecutor.
+     */
+    interface NotRunListener {
+        void notRun(Throwable why);
+    }
+
+    /**
+     * Also releases the weight of the tasks that never ran, and tells the NotRunListeners.
+     */
     @Override
-    protected void afterExecute(Runnable runnable, Throwable thrown) {
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks = super.shutdownNow();
+        for (Runnable task : tasks) {
+            if (task instanceof FutureTaskWithCallable) {
+                FutureTaskWithCallable<?> future = (FutureTaskWithCallable<?>) task;
+                future.releaseWeight();
+                Object callable = future.callable;
+                if (callable instanceof NotRunListener) {
+                    ((NotRunListener) callable).notRun(new RejectedExecutionException("Shut down before it ran"));
+                }
+            }
+        }
+        return tasks;
+    }
 
-        if (print == false) {
+    @Override
+    protected void terminated() {
+        CheckpointLog log = checkpointLog;
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Tasks submitted after this carry the context from the submitting thread to the worker, see ContextPropagator.
+     * Tasks passed straight to execute() don't.
+     */
+    public synchronized void addContextPropagator(ContextPropagator<?> propagator) {
+        contextPropagators = ImmutableList.<ContextPropagator<?>>builder().addAll(contextPropagators).add(propagator).build();
+    }
+
+    private static Object[] capture(List<ContextPropagator<?>> propagators) {
+        if (propagators.isEmpty()) {
+            return null;
+        }
+        Object[] contexts = new Object[propagators.size()];
+        for (int i = 0; i < contexts.length; i++) {
+            contexts[i] = propagators.get(i).capture();
+        }
+        return contexts;
+    }
+
+    /**
+     * @return the contexts they replaced
+     */
+    @SuppressWarnings("unchecked")
+    private static Object[] apply(List<ContextPropagator<?>> propagators, Object[] contexts) {
+        Object[] previous = new Object[contexts.length];
+        for (int i = 0; i < contexts.length; i++) {
+            previous[i] = ((ContextPropagator<Object>) propagators.get(i)).apply(contexts[i]);
+        }
+        return previous;
+    }
+
+    /**
+     * Like submit(), but the returned future's dependent stages run on this executor by default,
+     * so a pipeline (fetch -> parse -> store) never blocks a worker waiting on an intermediate result.
+     * Use VerboseCompletableFuture.thenApplyAsync(stage, fn) & co. for dependent stages that are counted, printed & timed like tasks,
+     * with each stage's counts & p50 in the status line.
+     * Every stage of every chain is a task as far as the progress counters go, so set expectedNumTasks accordingly.
+     *
+     * A worker that finishes a stage submits the next one, so with a bounded queue
+     * (the default EnhancedLinkedBlockingQueue blocks when full) leave enough room for the whole pipeline.
+     *
+     * Cancelling the returned future (or one returned by thenApplyAsync(stage, fn) & co.) cancels its task,
+     * interrupting it if it's running & cancel(true) was called.
+     *
+     * @param stage the name to count & time the task under, null for none
+     */
+    public <T> VerboseCompletableFuture<T> submitAsync(String stage, Callable<T> task) {
+        VerboseCompletableFuture<T> future = new VerboseCompletableFuture<T>(this, new TaskName(task));
+        future.setTask(submit(new StageTask<T>(stage, future.description, task, future)));
+        return future;
+    }
+
+    public <T> VerboseCompletableFuture<T> submitAsync(Callable<T> task) {
+        return submitAsync(null, task);
+    }
+
+    /**
+     * Runs a dependent stage of a VerboseCompletableFuture, completing the future if it can't be submitted.
+     */
+    <T> void submitStage(String stage, TaskName description, Callable<T> task, VerboseCompletableFuture<T> future) {
+        if (future.isDone()) { // cancelled before the previous stage finished
             return;
         }
+        try {
+            future.setTask(submit(new StageTask<T>(stage, description, task, future)));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+    }
 
-        if (thrown == null) {
-            FutureTaskWithCallable<?> ftwc = (FutureTaskWithCallable<?>) runnable;
+    /**
+     * The description of the task at the start of a chain, only worked out if it's printed.
+     */
+    final class TaskName {
+        private Object task; // guarded by this, dropped once it has a name
+        private String name = null; // guarded by this
+
+        TaskName(Object task) {
+            this.task = task;
+        }
+
+        @Override
+        public synchronized String toString() {
+            if (name == null) {
+                name = taskPrinter.taskToString(task);
+                task = null;
+            }
+            return name;
+        }
+    }
+
+    /**
+     * For the stages that VerboseCompletableFuture's own *Async() methods run.
+     */
+    final Executor asyncExecutor = new Executor() {
+        @Override
+        public void execute(final Runnable runnable) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    runnable.run();
+                }
+
+                @Override
+                public String toString() {
+                    return "async stage";
+                }
+            });
+        }
+    };
+
+    /**
+     * One stage of a chain. The FutureTaskWithCallable it runs in completes its future, see done().
+     */
+    private final class StageTask<T> implements Callable<T> {
+        private final String stage; // null for none
+        private final TaskName description;
+        private final Callable<T> task;
+        private final CompletableFuture<T> future;
+
+        StageTask(String stage, TaskName description, Callable<T> task, CompletableFuture<T> future) {
+            this.stage = stage;
+            this.description = description;
+            this.task = task;
+            this.future = future;
+        }
+
+        @Override
+        public T call() throws Exception {
+            if (stage == null) {
+                return task.call();
+            }
+            StageStats stats = getStageStats(stage);
+            long start = System.currentTimeMillis();
+            boolean ok = false;
             try {
-                ftwc.get();
+                T result = task.call();
+                ok = true;
+                return result;
+            } finally {
+                stats.latencies.record(System.currentTimeMillis() - start);
+                (ok ? stats.completed : stats.failed).incrementAndGet();
+            }
+        }
+
+        void done(Future<T> finished) {
+            if (finished.isCancelled()) {
+                future.cancel(false);
+                return;
+            }
+            try {
+                future.complete(finished.get());
+            } catch (ExecutionException e) {
+                future.completeExceptionally(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Can't happen, it's done
+            }
+        }
+
+        @Override
+        public String toString() {
+            return stage == null ? description.toString() : stage + SEP + description;
+        }
+    }
+
+    private StageStats getStageStats(String stage) {
+        synchronized (stageStats) {
+            StageStats stats = stageStats.get(stage);
+            if (stats == null) {
+                stats = new StageStats();
+                stageStats.put(stage, stats);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * @return the stats for each named stage run so far, see submitAsync()
+     */
+    public Map<String, StageStats> getStageStats() {
+        synchronized (stageStats) {
+            return ImmutableMap.copyOf(stageStats);
+        }
+    }
+
+    private <T> RunnableFuture<T> submitted(FutureTaskWithCallable<T> task) {
+        task.admit();
+        TaskSubmittedEvent event = new TaskSubmittedEvent();
+        if (event.isEnabled()) {
+            event.task = taskName(task);
+            event.queueDepth = getQueue().size();
+            event.commit();
+        }
+        return task;
+    }
+
+    /**
+     * Interrupts the thread only if it's still running the task, checked under the same lock as task timeouts,
+     * so a task that finished after it was seen running can't get the worker's next task interrupted.
+     *
+     * @return false if the thread has moved on, or the task wasn't submit()ted so there's no safe way to tell
+     */
+    boolean interruptIfRunning(Thread thread, Runnable task) {
+        return task instanceof FutureTaskWithCallable && ((FutureTaskWithCallable<?>) task).interrupt(thread);
+    }
+
+    /**
+     * Doesn't call toString() on a FutureTaskWithCallable, which waits for its result.
+     *
+     * @return null for a FutureTaskWithCallable that has already run
+     */
+    String taskName(Runnable runnable) {
+        if (runnable instanceof FutureTaskWithCallable) {
+            Object callable = ((FutureTaskWithCallable<?>) runnable).callable;
+            return callable != null ? taskPrinter.taskToString(callable) : null;
+        }
+        return String.valueOf(runnable);
+    }
+
+    private static long queuedMillis(Runnable runnable, long now) {
+        if (runnable instanceof FutureTaskWithCallable) {
+            return now - ((FutureTaskWithCallable<?>) runnable).submitTime;
+        }
+        return -1;
+    }
+
+    /**
+     * Records a JFR event for each rejected task, then hands it to the real handler.
+     */
+    private static final class RecordingRejectedExecutionHandler implements RejectedExecutionHandler {
+
+        private final RejectedExecutionHandler handler;
+
+        RecordingRejectedExecutionHandler(RejectedExecutionHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            TaskRejectedEvent event = new TaskRejectedEvent();
+            if (event.isEnabled()) {
+                event.task = ((VerboseThreadPoolExecutor) executor).taskName(runnable);
+                event.queueDepth = executor.getQueue().size();
+                event.shutdown = executor.isShutdown();
+                event.commit();
+            }
+            if (! (runnable instanceof FutureTaskWithCallable)) {
+                handler.rejectedExecution(runnable, executor);
+                return;
+            }
+            FutureTaskWithCallable<?> task = (FutureTaskWithCallable<?>) runnable;
+            try {
+                handler.rejectedExecution(runnable, executor);
+            } catch (RuntimeException e) {
+                task.releaseWeight();
+                throw e;
+            }
+            // e.g. DiscardPolicy dropped it, as opposed to CallerRunsPolicy running it or DiscardOldestPolicy queueing it
+            if (! task.isDone() && ! executor.getQueue().contains(task)) {
+                task.releaseWeight();
+            }
+        }
+    }
+
+    /**
+     * Counts the threads it has made that are still alive, and tracks their RunStates.
+     * Each thread keeps its ResourceSlots until it exits.
+     */
+    private static final class CountingThreadFactory implements ThreadFactory {
+
+        private final ThreadFactory threadFactory;
+        private final AtomicInteger numAlive = new AtomicInteger(0);
+        private final ConcurrentMap<Thread, RunState> states = new ConcurrentHashMap<Thread, RunState>();
+
+        CountingThreadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    numAlive.incrementAndGet();
+                    try {
+                        ResourceSlot.runWorker(runnable);
+                    } finally {
+                        numAlive.decrementAndGet();
+                        states.remove(Thread.currentThread());
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void beforeExecute(Thread thread, Runnable runnable) {
+        activeCounter.incrementAndGet();
+        RunState state = runState.get();
+        state.startTime = System.currentTimeMillis();
+        state.task = runnable;
+        if (runnable instanceof FutureTaskWithCallable) {
+            FutureTaskWithCallable<?> task = (FutureTaskWithCallable<?>) runnable;
+            task.onWorker = true;
+            task.applyContexts();
+            task.started(thread);
+        }
+
+        TaskStartedEvent started = new TaskStartedEvent();
+        if (started.isEnabled()) {
+            started.task = taskName(runnable);
+            started.queuedMillis = queuedMillis(runnable, state.startTime);
+            started.commit();
+        }
+
+        TaskCompletedEvent completed = new TaskCompletedEvent();
+        if (completed.isEnabled()) {
+            completed.begin();
+            state.event = completed;
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable runnable, Throwable thrown) {
+
+        if (runnable instanceof FutureTaskWithCallable) {
+            FutureTaskWithCallable<?> task = (FutureTaskWithCallable<?>) runnable;
+            task.finished();
+            task.restoreContexts();
+        }
+        ResourceSlot.resetUsed();
+        activeCounter.decrementAndGet();
+        RunState state = runState.get();
+        state.task = null;
+        long millis = System.currentTimeMillis() - state.startTime;
+        taskLatencies.record(millis);
+        SlowestTasks slowest = slowestTasks;
+        if (slowest != null && slowest.isSlowEnough(millis)) {
+            slowest.add(millis, taskName(runnable));
+        }
+
+        // Runnables passed to execute() (e.g. by an ExecutorCompletionService) aren't FutureTaskWithCallables
+        // CompletableFuture's own tasks are Futures that never complete, so don't wait on them
+        if (thrown == null && runnable instanceof Future && ((Future<?>) runnable).isDone()) {
+            try {
+                ((Future<?>) runnable).get();
             } catch (Throwable e) {
                 if (e.getCause() != null) {
                     e = e.getCause();
@@ -139,22 +1050,52 @@ public class VerboseThreadPoolExecutor extends ThreadPoolExecutor {
             }
         }
 
+        TaskCompletedEvent event = state.event;
+        if (event != null) {
+            state.event = null;
+            event.end();
+            if (event.shouldCommit()) {
+                event.task = taskName(runnable);
+                event.queuedMillis = queuedMillis(runnable, state.startTime);
+                event.failed = thrown != null;
+                event.exception = thrown != null ? thrown.toString() : null;
+                event.commit();
+            }
+        }
+
         int completedCount;
         int exceptionCount;
 
         if (thrown == null) {
+            checkpoint(runnable);
             completedCount = completedCounter.incrementAndGet();
             exceptionCount = exceptionCounter.get();
         } else {
             exceptionCount = exceptionCounter.incrementAndGet();
             completedCount = completedCounter.get();
-            if (printExceptions) {
+            if (thrown instanceof TaskTimeoutException) {
+                timedOutCounter.incrementAndGet();
+            }
+            if (print && printExceptions) {
                 thrown.printStackTrace();
             }
         }
 
+        if (print) {
+            printStatus(runnable, completedCount, exceptionCount, slowest);
+        }
+
+        if (runnable instanceof FutureTaskWithCallable) {
+            ((FutureTaskWithCallable<?>) runnable).ran(); // Nothing needs the task itself after this
+        }
+    }
+
+    /**
+     * Only renders the task if its line is verbose, see setVerboseSampleRate().
+     */
+    private void printStatus(Runnable runnable, int completedCount, int exceptionCount, SlowestTasks slowest) {
         int done = completedCount + exceptionCount;
-        int left = expectedNumTasks - done;
+        int left = expectedNumTasks - getCarriedOverCount() - done;
 
         if (done % tasksPerPrint != 0) {
             return;
@@ -169,27 +1110,150 @@ public class VerboseThreadPoolExecutor extends ThreadPoolExecutor {
             lastPrintTime.set(time);
         }
 
-        String outputLine = getLogString(exceptionCount, done, left, time);
-        if (verbosePrint) {
-            outputLine += SEP + runnable.toString();
+        StatusLine line = StatusLine.get();
+        try {
+            StringBuilder sb = line.sb;
+            appendLogString(sb, line.buf, exceptionCount, done, left, time);
+            if (verbosePrint && numPrinted.incrementAndGet() % verboseSampleRate == 0) {
+                sb.append(SEP).append(runnable);
+            }
+
+            if (slowest != null) {
+                for (SlowestTasks.Entry entry : slowest.drain()) {
+                    sb.append(LINE_SEPARATOR).append("    slowest").append(SEP).append(entry);
+                }
+            }
+
+            printStream.println(sb.toString()); // One println, so other workers' lines don't get in between
+        } finally {
+            line.release();
         }
+    }
 
-        printStream.println(outputLine);
+    /**
+     * A worker's buffers for formatting status lines, reused from one line to the next like Pretty's.
+     */
+    private static final class StatusLine {
+
+        private static final int MAX_KEPT = 8 * 1024; // a verbose task's toString() could be huge
+
+        private static final ThreadLocal<StatusLine> LOCAL = new ThreadLocal<StatusLine>() {
+            @Override
+            protected StatusLine initialValue() {
+                return new StatusLine();
+            }
+        };
+
+        StringBuilder sb = new StringBuilder(256);
+        final char[] buf = new char[Pretty.MAX_LENGTH];
+        private boolean inUse = false;
+
+        /**
+         * @return this thread's, emptied, or a new one if this thread's is in use (e.g. a status supplier calls getStatus())
+         */
+        static StatusLine get() {
+            StatusLine line = LOCAL.get();
+            if (line.inUse) {
+                return new StatusLine();
+            }
+            if (line.sb.capacity() > MAX_KEPT) {
+                line.sb = new StringBuilder(256);
+            }
+            line.sb.setLength(0);
+            line.inUse = true;
+            return line;
+        }
+
+        void release() {
+            inUse = false;
+        }
     }
 
     private String getLogString(int except, int done, int left, long time) {
-        Formatter formatter = new Formatter();
-        formatter.format(countsFormat, time, done, except);
+        StatusLine line = StatusLine.get();
+        try {
+            appendLogString(line.sb, line.buf, except, done, left, time);
+            return line.sb.toString();
+        } finally {
+            line.release();
+        }
+    }
+
+    private void appendLogString(StringBuilder sb, char[] buf, int except, int done, int left, long time) {
+        // Formatted by hand into the worker's own buffers, since it's on the per-task print path
+        append(sb, buf, Pretty.timestamp(time, buf, 0), 0);
+        sb.append(' ');
+        appendCount(sb, done);
+        sb.append(" tasks complete").append(SEP);
+        appendCount(sb, except);
+        sb.append(" exceptions");
+        int carriedOver = getCarriedOverCount();
+        if (carriedOver > 0) {
+            sb.append(SEP);
+            appendCount(sb, carriedOver);
+            sb.append(" carried over");
+        }
+        int timedOut = Math.min(timedOutCounter.get(), except); // it's incremented after exceptionCounter
+        if (timedOut > 0 || taskTimeoutMillis > 0) {
+            sb.append(SEP);
+            appendCount(sb, timedOut);
+            sb.append(" timed out");
+        }
+        AdmissionController admission = admissionController;
+        if (admission != null) {
+            sb.append(SEP).append(admission.getStatus());
+        }
         long millisTaken = System.currentTimeMillis() - startTime.get();
         double tasksPerHour = (double)(TimeUnit.HOURS.toMillis(1) * done) / millisTaken;
         //formatter.format(sep + "taken %s (%.3g per hour)", Pretty.time(millisTaken), tasksPerHour);
-        formatter.format(SEP + "taken %-12s (%6s per hour)", Pretty.time(millisTaken), Pretty.metric(tasksPerHour));
+        sb.append(SEP).append("taken ");
+        append(sb, buf, Pretty.time(millisTaken, buf, 0), -12);
+        sb.append(" (");
+        append(sb, buf, Pretty.metric(tasksPerHour, buf, 0), 6);
+        sb.append(" per hour)");
         if (expectedNumTasks > 0) {
             long millisToComplete = millisToComplete(startTime.get(), done, left);
             //sb.append(String.format(" %" + printWidth + " left", left));
-            formatter.format(SEP + "ETC %-12s", Pretty.time(millisToComplete));
+            sb.append(SEP).append("ETC ");
+            append(sb, buf, Pretty.time(millisToComplete, buf, 0), -12);
+        }
+        if (! stageStats.isEmpty()) { // Iterating allocates, even when there's nothing there
+            synchronized (stageStats) {
+                for (Map.Entry<String, StageStats> e : stageStats.entrySet()) {
+                    sb.append(SEP).append(e.getKey()).append(": ").append(e.getValue());
+                }
+            }
+        }
+        if (statusSupplier != null) {
+            sb.append(SEP).append(statusSupplier.get());
+        }
+    }
+
+    /**
+     * Right-justified to printWidth, like %Nd
+     */
+    private void appendCount(StringBuilder sb, int count) {
+        int length = count < 0 ? 2 : 1;
+        for (int n = Math.abs(count / 10); n > 0; n /= 10) {
+            length++;
+        }
+        for (int i = length; i < printWidth; i++) {
+            sb.append(' ');
+        }
+        sb.append(count);
+    }
+
+    /**
+     * @param width right-justified if > 0, left-justified if < 0, like %Ns & %-Ns
+     */
+    private static void append(StringBuilder sb, char[] buf, int length, int width) {
+        for (int i = length; i < width; i++) {
+            sb.append(' ');
+        }
+        sb.append(buf, 0, length);
+        for (int i = length; i < -width; i++) {
+            sb.append(' ');
         }
-        return formatter.toString();
     }
 
     // Also see ThreadPoolExecutor.getTaskCount() = The # of tasks submitted ???
@@ -203,6 +1267,13 @@ public class VerboseThreadPoolExecutor extends ThreadPoolExecutor {
         return exceptionCounter.get();
     }
 
+    /**
+     * Tasks that failed with a TaskTimeoutException, also counted by getExceptionCount().
+     */
+    public int getTimedOutCount() {
+        return timedOutCounter.get();
+    }
+
     public long getLastPrintTime() {
         return lastPrintTime.get();
     }
@@ -211,10 +1282,57 @@ public class VerboseThreadPoolExecutor extends ThreadPoolExecutor {
         return startTime.get();
     }
 
+    /**
+     * @return the worker threads that are alive, and what each one is running
+     */
+    Map<Thread, RunState> getRunStates() {
+        return countingThreadFactory.states;
+    }
+
+    /**
+     * How long tasks have taken to run, not counting time spent in the queue.
+     */
+    public LatencyTracker getTaskLatencies() {
+        return taskLatencies;
+    }
+
+    /**
+     * Only reads counters, so it never blocks (or is blocked by) the worker threads.
+     */
+    public ExecutorMetrics getMetrics() {
+        long now = System.currentTimeMillis();
+        int except = exceptionCounter.get();
+        int completed = completedCounter.get();
+        int done = completed + except;
+        long start = startTime.get();
+        long millisTaken = start == 0 ? 0 : now - start;
+        double tasksPerSecond = millisTaken == 0 ? 0 : (double)(TimeUnit.SECONDS.toMillis(1) * done) / millisTaken;
+        long etc = expectedNumTasks > 0 && start != 0 ? millisToComplete(start, done, expectedNumTasks - getCarriedOverCount() - done) : -1;
+
+        return new ExecutorMetrics(
+                now,
+                countingThreadFactory.numAlive.get(),
+                getMaximumPoolSize(),
+                activeCounter.get(),
+                getQueue().size(),
+                completed,
+                except,
+                timedOutCounter.get(),
+                expectedNumTasks,
+                tasksPerSecond,
+                etc,
+                taskLatencies.percentile(0.5),
+                taskLatencies.percentile(0.9),
+                taskLatencies.percentile(0.99),
+                taskLatencies.getMax(),
+                taskLatencies.getTotal(),
+                taskLatencies.getCount());
+    }
+
     public String getStatus() {
         int except = exceptionCounter.get();
         int done = completedCounter.get() + except;
-        int left = expectedNumTasks - done;
+        int left = expectedNumTasks - getCarriedOverCount() - done;
         return getLogString(except, done, left, System.currentTimeMillis());
     }
 
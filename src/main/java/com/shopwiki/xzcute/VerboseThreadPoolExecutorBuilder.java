@@ -1,6 +1,7 @@
 package com.shopwiki.xzcute;
 
 import java.io.PrintStream;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionHandler;
@@ -9,6 +10,7 @@ import java.util.concurrent.ThreadPoolExecutor.AbortPolicy;
 import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
 import com.shopwiki.xzcute.VerboseThreadPoolExecutor.TaskPrinter;
 import com.shopwiki.xzcute.util.UTF8;
 
@@ -40,6 +42,14 @@ public final class VerboseThreadPoolExecutorBuilder {
     private int expectedNumTasks = 0;
 
     private TaskPrinter<?> taskPrinter = new TaskPrinter<Object>();
+    private Supplier<String> statusSupplier = null;
+    private long taskTimeoutMillis = 0L;
+    private boolean timeoutStackTraces = false;
+    private final List<ContextPropagator<?>> contextPropagators = Lists.newArrayList();
+    private CheckpointLog checkpointLog = null;
+    private AdmissionController admissionController = null;
+    private int verboseSampleRate = 1;
+    private int slowestTasksPerPrint = 0;
 
     private static Supplier<BlockingQueue<Runnable>> newDefaultQueueSupplier(final int capacity) {
         return new Supplier<BlockingQueue<Runnable>>() {
@@ -50,8 +60,39 @@ public final class VerboseThreadPoolExecutorBuilder {
         };
     }
 
+    /**
+     * @return a new builder with the same settings, which can be changed without changing this one
+     */
+    public VerboseThreadPoolExecutorBuilder copy() {
+        VerboseThreadPoolExecutorBuilder copy = new VerboseThreadPoolExecutorBuilder();
+        copy.corePoolSize = corePoolSize;
+        copy.maximumPoolSize = maximumPoolSize;
+        copy.keepAliveTime = keepAliveTime;
+        copy.unit = unit;
+        copy.workQueueSupplier = workQueueSupplier;
+        copy.threadFactory = threadFactory;
+        copy.handler = handler;
+        copy.print = print;
+        copy.printStream = printStream;
+        copy.tasksPerPrint = tasksPerPrint;
+        copy.millisPerPrint = millisPerPrint;
+        copy.verbosePrint = verbosePrint;
+        copy.printExceptions = printExceptions;
+        copy.expectedNumTasks = expectedNumTasks;
+        copy.taskPrinter = taskPrinter;
+        copy.statusSupplier = statusSupplier;
+        copy.taskTimeoutMillis = taskTimeoutMillis;
+        copy.timeoutStackTraces = timeoutStackTraces;
+        copy.contextPropagators.addAll(contextPropagators);
+        copy.checkpointLog = checkpointLog;
+        copy.admissionController = admissionController;
+        copy.verboseSampleRate = verboseSampleRate;
+        copy.slowestTasksPerPrint = slowestTasksPerPrint;
+        return copy;
+    }
+
     public VerboseThreadPoolExecutor build() {
-        return new VerboseThreadPoolExecutor(
+        VerboseThreadPoolExecutor executor = new VerboseThreadPoolExecutor(
                 corePoolSize,
                 maximumPoolSize,
                 keepAliveTime, unit,
@@ -65,8 +106,19 @@ public final class VerboseThreadPoolExecutorBuilder {
                 verbosePrint,
                 printExceptions,
                 expectedNumTasks,
-                taskPrinter
+                taskPrinter,
+                statusSupplier
                 );
+        executor.setTaskTimeout(taskTimeoutMillis, TimeUnit.MILLISECONDS);
+        executor.setTimeoutStackTraces(timeoutStackTraces);
+        for (ContextPropagator<?> propagator : contextPropagators) {
+            executor.addContextPropagator(propagator);
+        }
+        executor.setCheckpointLog(checkpointLog);
+        executor.setAdmissionController(admissionController);
+        executor.setVerboseSampleRate(verboseSampleRate);
+        executor.setSlowestTasksPerPrint(slowestTasksPerPrint);
+        return executor;
     }
 
     public VerboseThreadPoolExecutorBuilder setCorePoolSize(int size) {
@@ -194,6 +246,36 @@ public final class VerboseThreadPoolExecutorBuilder {
         return verbosePrint;
     }
 
+    /**
+     * See VerboseThreadPoolExecutor.setVerboseSampleRate()
+     */
+    public VerboseThreadPoolExecutorBuilder setVerboseSampleRate(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException();
+        }
+        this.verboseSampleRate = n;
+        return this;
+    }
+
+    public int getVerboseSampleRate() {
+        return verboseSampleRate;
+    }
+
+    /**
+     * See VerboseThreadPoolExecutor.setSlowestTasksPerPrint()
+     */
+    public VerboseThreadPoolExecutorBuilder setSlowestTasksPerPrint(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.slowestTasksPerPrint = k;
+        return this;
+    }
+
+    public int getSlowestTasksPerPrint() {
+        return slowestTasksPerPrint;
+    }
+
     public VerboseThreadPoolExecutorBuilder setPrintExceptions(boolean printExceptions) {
         this.printExceptions = printExceptions;
         return this;
@@ -220,4 +302,79 @@ public final class VerboseThreadPoolExecutorBuilder {
     public TaskPrinter<?> getTaskPrinter() {
         return taskPrinter;
     }
+
+    /**
+     * What the supplier returns gets appended to every status line, e.g. to show the progress of a rollout.
+     */
+    public VerboseThreadPoolExecutorBuilder setStatusSupplier(Supplier<String> statusSupplier) {
+        this.statusSupplier = statusSupplier;
+        return this;
+    }
+
+    public Supplier<String> getStatusSupplier() {
+        return statusSupplier;
+    }
+
+    /**
+     * See VerboseThreadPoolExecutor.setTaskTimeout()
+     */
+    public VerboseThreadPoolExecutorBuilder setTaskTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.taskTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    public long getTaskTimeoutMillis() {
+        return taskTimeoutMillis;
+    }
+
+    /**
+     * See VerboseThreadPoolExecutor.setTimeoutStackTraces()
+     */
+    public VerboseThreadPoolExecutorBuilder setTimeoutStackTraces(boolean timeoutStackTraces) {
+        this.timeoutStackTraces = timeoutStackTraces;
+        return this;
+    }
+
+    public boolean getTimeoutStackTraces() {
+        return timeoutStackTraces;
+    }
+
+    /**
+     * See VerboseThreadPoolExecutor.addContextPropagator()
+     */
+    public VerboseThreadPoolExecutorBuilder addContextPropagator(ContextPropagator<?> propagator) {
+        contextPropagators.add(propagator);
+        return this;
+    }
+
+    public List<ContextPropagator<?>> getContextPropagators() {
+        return contextPropagators;
+    }
+
+    /**
+     * See VerboseThreadPoolExecutor.setCheckpointLog()
+     */
+    public VerboseThreadPoolExecutorBuilder setCheckpointLog(CheckpointLog checkpointLog) {
+        this.checkpointLog = checkpointLog;
+        return this;
+    }
+
+    public CheckpointLog getCheckpointLog() {
+        return checkpointLog;
+    }
+
+    /**
+     * See VerboseThreadPoolExecutor.setAdmissionController()
+     */
+    public VerboseThreadPoolExecutorBuilder setAdmissionController(AdmissionController admissionController) {
+        this.admissionController = admissionController;
+        return this;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
 }
@@ -37,8 +37,7 @@ public class VerboseThreadPoolExecutorExample {
             executor.submit(task);
         }
 
-        executor.shutdown();
-        executor.awaitTermination(1, TimeUnit.MINUTES);
+        executor.shutdownGracefully(1, TimeUnit.MINUTES);
 
         System.out.println();
     }
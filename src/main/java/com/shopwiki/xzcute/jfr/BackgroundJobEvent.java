@@ -0,0 +1,30 @@
+package com.shopwiki.xzcute.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A BackgroundExecutor job ran. The event's duration is how long it ran for.
+ */
+@Name("com.shopwiki.xzcute.BackgroundJob")
+@Label("Background Job")
+@Category({ "XZCute", "BackgroundExecutor" })
+@Description("A BackgroundExecutor job ran, for the event's duration")
+@Enabled(false)
+@StackTrace(false)
+public class BackgroundJobEvent extends Event {
+
+    @Label("Job")
+    public String job;
+
+    @Label("Failed")
+    public boolean failed;
+
+    @Label("Exception")
+    public String exception;
+}
@@ -0,0 +1,38 @@
+package com.shopwiki.xzcute.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A command ran over SSH. The event's duration is from when it was requested until the channel closed.
+ */
+@Name("com.shopwiki.xzcute.SSHCommand")
+@Label("SSH Command")
+@Category({ "XZCute", "SSH" })
+@Description("A command ran over SSH, from when it was requested until its channel closed")
+@Enabled(false)
+@StackTrace(false)
+public class SSHCommandEvent extends Event {
+
+    @Label("Host")
+    public String host;
+
+    @Label("Command")
+    public String command;
+
+    @Label("Exit Status")
+    public int exitStatus; // -1 if it failed or the server never sent one
+
+    @Label("Connect Time")
+    @Timespan(Timespan.MILLISECONDS)
+    public long connectMillis; // -1 if it never connected
+
+    @Label("Exception")
+    public String exception;
+}
@@ -0,0 +1,35 @@
+package com.shopwiki.xzcute.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A task ran on a VerboseThreadPoolExecutor. The event's duration is how long it ran for.
+ */
+@Name("com.shopwiki.xzcute.TaskCompleted")
+@Label("Task Completed")
+@Category({ "XZCute", "Executor" })
+@Description("A task ran on a VerboseThreadPoolExecutor, for the event's duration")
+@Enabled(false)
+@StackTrace(false)
+public class TaskCompletedEvent extends Event {
+
+    @Label("Task")
+    public String task;
+
+    @Label("Time Queued")
+    @Timespan(Timespan.MILLISECONDS)
+    public long queuedMillis; // -1 if the task wasn't submitted with submit()
+
+    @Label("Failed")
+    public boolean failed;
+
+    @Label("Exception")
+    public String exception;
+}
@@ -0,0 +1,28 @@
+package com.shopwiki.xzcute.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A VerboseThreadPoolExecutor handed a task to its RejectedExecutionHandler.
+ */
+@Name("com.shopwiki.xzcute.TaskRejected")
+@Label("Task Rejected")
+@Category({ "XZCute", "Executor" })
+@Description("A task was handed to the executor's RejectedExecutionHandler")
+@Enabled(false)
+public class TaskRejectedEvent extends Event {
+
+    @Label("Task")
+    public String task;
+
+    @Label("Queue Depth")
+    public int queueDepth;
+
+    @Label("Shut Down")
+    public boolean shutdown;
+}
@@ -0,0 +1,29 @@
+package com.shopwiki.xzcute.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A VerboseThreadPoolExecutor's worker thread picked up a task.
+ */
+@Name("com.shopwiki.xzcute.TaskStarted")
+@Label("Task Started")
+@Category({ "XZCute", "Executor" })
+@Description("A worker thread picked up a task")
+@Enabled(false)
+@StackTrace(false)
+public class TaskStartedEvent extends Event {
+
+    @Label("Task")
+    public String task;
+
+    @Label("Time Queued")
+    @Timespan(Timespan.MILLISECONDS)
+    public long queuedMillis; // -1 if the task wasn't submitted with submit()
+}
@@ -0,0 +1,27 @@
+package com.shopwiki.xzcute.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A task was submitted to a VerboseThreadPoolExecutor.
+ */
+@Name("com.shopwiki.xzcute.TaskSubmitted")
+@Label("Task Submitted")
+@Category({ "XZCute", "Executor" })
+@Description("A task was submitted to a VerboseThreadPoolExecutor")
+@Enabled(false)
+@StackTrace(false)
+public class TaskSubmittedEvent extends Event {
+
+    @Label("Task")
+    public String task;
+
+    @Label("Queue Depth")
+    public int queueDepth;
+}
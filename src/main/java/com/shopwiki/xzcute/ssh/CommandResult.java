@@ -0,0 +1,83 @@
+package com.shopwiki.xzcute.ssh;
+
+/**
+ * The outcome of running one command on one host.
+ *
+ * stdout and stderr are kept separate, and timings are split into
+ * getting a session + opening the channel vs. the command itself.
+ */
+public class CommandResult {
+
+    public final String host;
+    public final String command;
+    public final String stdout;
+    public final String stderr;
+    public final int exitStatus; // -1 if the server never sent one (e.g. the command was killed by a signal)
+
+    public final long startTime;     // when the command was requested
+    public final long connectedTime; // when the exec channel was connected
+    public final long endTime;       // when the channel was closed
+
+    public final boolean cached; // true if this came out of a ResultCache instead of running the command
+
+    CommandResult(String host, String command, String stdout, String stderr, int exitStatus, long startTime, long connectedTime, long endTime) {
+        this(host, command, stdout, stderr, exitStatus, startTime, connectedTime, endTime, false);
+    }
+
+    CommandResult(String host, String command, String stdout, String stderr, int exitStatus, long startTime, long connectedTime, long endTime, boolean cached) {
+        this.host = host;
+        this.command = command;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.exitStatus = exitStatus;
+        this.startTime = startTime;
+        this.connectedTime = connectedTime;
+        this.endTime = endTime;
+        this.cached = cached;
+    }
+
+    CommandResult asCached() {
+        return new CommandResult(host, command, stdout, stderr, exitStatus, startTime, connectedTime, endTime, true);
+    }
+
+    public boolean isSuccess() {
+        return exitStatus == 0;
+    }
+
+    /**
+     * @return stdout followed by stderr
+     */
+    public String getOutput() {
+        if (stderr.isEmpty()) {
+            return stdout;
+        }
+        if (stdout.isEmpty()) {
+            return stderr;
+        }
+        return stdout + stderr;
+    }
+
+    public long getConnectMillis() {
+        return connectedTime - startTime;
+    }
+
+    public long getRunMillis() {
+        return endTime - connectedTime;
+    }
+
+    public long getTotalMillis() {
+        return endTime - startTime;
+    }
+
+    /**
+     * @return how long ago the command finished
+     */
+    public long getAgeMillis() {
+        return System.currentTimeMillis() - endTime;
+    }
+
+    @Override
+    public String toString() {
+        return host + " exit=" + exitStatus + " connect=" + getConnectMillis() + "ms run=" + getRunMillis() + "ms";
+    }
+}
@@ -0,0 +1,388 @@
+package com.shopwiki.xzcute.ssh;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+import com.shopwiki.xzcute.VerboseThreadPoolExecutor;
+import com.shopwiki.xzcute.VerboseThreadPoolExecutor.TaskPrinter;
+import com.shopwiki.xzcute.ssh.SSH.SSHException;
+
+/**
+ * Copies a local file to many workers over SFTP, on sessions from an SSHSessionPool.
+ *
+ * The file is memory-mapped once and every upload streams from that same mapping,
+ * so it is never read into the heap no matter how big it is or how many uploads are running.
+ * At most maxParallel uploads run from this machine at once.
+ *
+ * With relaying, every worker that already has the file scp's it on to one that doesn't,
+ * so the number of copies about doubles every round and pushing to N workers takes about log2(N) rounds
+ * instead of N / maxParallel. This needs the workers to be able to ssh to each other as the same user.
+ * Relays check host keys against each source worker's known_hosts, so a target it doesn't know
+ * gets a direct upload instead, unless setCheckHostKeys(false) was called.
+ * If a relay fails or times out (see setRelayTimeout()), its target gets a direct upload instead and its source stops relaying.
+ *
+ * Each copy is written to remoteFile.part, then its size is checked and it is renamed into place.
+ */
+public class FilePusher {
+
+    private static final long MAX_REGION_BYTES = 1L << 30; // A MappedByteBuffer can't be over 2GB
+
+    public static final long DEFAULT_RELAY_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    // So a relay to a worker that's unreachable or stops answering fails in about a minute, not never
+    private static final String RELAY_KEEP_ALIVE = "-o ConnectTimeout=30 -o ServerAliveInterval=15 -o ServerAliveCountMax=4 ";
+
+    private final SSHSessionPool pool;
+    private final String username;
+    private final String privateKeyFile;
+    private final int maxParallel;
+    private final int maxRelays;
+    private volatile boolean checkHostKeys = true;
+    private volatile long relayTimeoutMillis = DEFAULT_RELAY_TIMEOUT_MILLIS;
+
+    /**
+     * @param maxParallel max # of uploads from this machine at once
+     * @param maxRelays max # of worker-to-worker copies at once, 0 for no relaying
+     */
+    public FilePusher(SSHSessionPool pool, String username, String privateKeyFile, int maxParallel, int maxRelays) {
+        if (maxParallel < 1 || maxRelays < 0) {
+            throw new IllegalArgumentException();
+        }
+        this.pool = pool;
+        this.username = username;
+        this.privateKeyFile = privateKeyFile;
+        this.maxParallel = maxParallel;
+        this.maxRelays = maxRelays;
+    }
+
+    /**
+     * @param checkHostKeys false to relay to workers that aren't in the source's known_hosts (or whose key changed),
+     *                      i.e. with no protection against a man in the middle between workers
+     */
+    public FilePusher setCheckHostKeys(boolean checkHostKeys) {
+        this.checkHostKeys = checkHostKeys;
+        return this;
+    }
+
+    /**
+     * A relay that's still copying after this fails, and its target gets a direct upload instead.
+     *
+     * @param timeout SSH.NO_TIMEOUT for none
+     */
+    public FilePusher setRelayTimeout(long timeout, TimeUnit unit) {
+        this.relayTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    /**
+     * @return the workers that didn't get the file, and why
+     */
+    public Map<Worker, Throwable> push(String localFile, String remoteFile, List<Worker> workers) throws IOException, InterruptedException {
+        FileChannel channel = FileChannel.open(Paths.get(localFile), StandardOpenOption.READ);
+        try {
+            List<MappedByteBuffer> regions = Lists.newArrayList();
+            long size = channel.size();
+            for (long pos = 0; pos < size; pos += MAX_REGION_BYTES) {
+                regions.add(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAX_REGION_BYTES, size - pos)));
+            }
+            return new Run(regions, size, remoteFile, workers).run();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private final class Run {
+        final List<MappedByteBuffer> regions;
+        final long size;
+        final String remoteFile;
+        final List<Worker> workers;
+
+        final Deque<Worker> unseeded;
+        final Deque<Worker> direct = new ArrayDeque<Worker>(); // relays to these failed
+        final Deque<Worker> seeds = new ArrayDeque<Worker>();  // have the file & aren't relaying it right now
+        final Map<Worker, Throwable> failures = Maps.newLinkedHashMap();
+        final AtomicInteger numSeeded = new AtomicInteger(0);
+        final AtomicInteger numRelayed = new AtomicInteger(0);
+        final BlockingQueue<Copy> finished = new LinkedBlockingQueue<Copy>();
+
+        Run(List<MappedByteBuffer> regions, long size, String remoteFile, List<Worker> workers) {
+            this.regions = regions;
+            this.size = size;
+            this.remoteFile = remoteFile;
+            this.workers = workers;
+            this.unseeded = new ArrayDeque<Worker>(workers);
+        }
+
+        Map<Worker, Throwable> run() throws InterruptedException {
+            Supplier<String> status = new Supplier<String>() {
+                @Override
+                public String get() {
+                    return numSeeded.get() + "/" + workers.size() + " have it" + SEP + numRelayed.get() + " relayed";
+                }
+            };
+
+            VerboseThreadPoolExecutor executor = VerboseThreadPoolExecutor.builder()
+                    .setPoolSize(maxParallel + maxRelays)
+                    .setVerbosePrint(true)
+                    .setPrintExceptions(false)
+                    .setExpectedNumTasks(workers.size())
+                    .setTaskPrinter(COPY_PRINTER)
+                    .setStatusSupplier(status)
+                    .build();
+
+            int numInFlight = 0;
+            int numUploading = 0;
+            int numRelaying = 0;
+
+            try {
+                while (true) {
+                    while (numUploading < maxParallel && (! direct.isEmpty() || ! unseeded.isEmpty())) {
+                        Worker target = direct.isEmpty() ? unseeded.poll() : direct.poll();
+                        executor.submit(new Copy(null, target));
+                        numInFlight++;
+                        numUploading++;
+                    }
+                    while (numRelaying < maxRelays && ! seeds.isEmpty() && ! unseeded.isEmpty()) {
+                        executor.submit(new Copy(seeds.poll(), unseeded.poll()));
+                        numInFlight++;
+                        numRelaying++;
+                    }
+
+                    if (numInFlight == 0) {
+                        break;
+                    }
+
+                    Copy copy = finished.take();
+                    numInFlight--;
+                    if (copy.source == null) {
+                        numUploading--;
+                    } else {
+                        numRelaying--;
+                    }
+
+                    if (copy.error == null) {
+                        numSeeded.incrementAndGet();
+                        if (maxRelays > 0) {
+                            seeds.add(copy.target);
+                            if (copy.source != null) {
+                                seeds.add(copy.source);
+                            }
+                        }
+                    } else {
+                        if (copy.source == null) {
+                            failures.put(copy.target, copy.error);
+                        } else {
+                            direct.add(copy.target); // Either end could be the problem, so don't relay from this source again
+                        }
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            return failures;
+        }
+
+        private final class Copy implements Callable<Void> {
+            final Worker source; // null means from this machine
+            final Worker target;
+            volatile Throwable error = null;
+
+            Copy(Worker source, Worker target) {
+                this.source = source;
+                this.target = target;
+            }
+
+            @Override
+            public Void call() throws Exception {
+                try {
+                    if (source == null) {
+                        upload(target);
+                    } else {
+                        relay(source, target);
+                        numRelayed.incrementAndGet();
+                    }
+                    return null;
+                } catch (Throwable t) { // Even an Error, so a copy that failed never counts as seeded
+                    error = t;
+                    throw t;
+                } finally {
+                    finished.add(this);
+                }
+            }
+
+            @Override
+            public String toString() {
+                return (source == null ? "local" : source.toString()) + " -> " + target;
+            }
+        }
+
+        private void upload(Worker target) throws SSHException, InterruptedException {
+            SSHSessionPool.PooledSession pooled = borrow(target);
+            boolean reusable = false; // Anything other than success or an SFTP error may have left the session in a bad state
+            try {
+                ChannelSftp sftp = (ChannelSftp) pooled.session.openChannel("sftp");
+                sftp.connect(SSH.CONNECT_TIMEOUT);
+                try {
+                    sftp.put(new MappedInputStream(regions), remoteFile + ".part", ChannelSftp.OVERWRITE);
+                    finish(sftp, target);
+                } finally {
+                    sftp.disconnect();
+                }
+                reusable = true;
+            } catch (JSchException e) {
+                throw new SSHException("SFTP Failed (" + target.host + ")\n" + remoteFile, e);
+            } catch (SftpException e) {
+                reusable = true;
+                throw new SSHException("SFTP Failed (" + target.host + ")\n" + remoteFile, e);
+            } finally {
+                if (reusable) {
+                    pooled.release();
+                } else {
+                    pooled.discard();
+                }
+            }
+        }
+
+        private void relay(Worker source, Worker target) throws SSHException, InterruptedException {
+            String command = "scp -q -o BatchMode=yes " + RELAY_KEEP_ALIVE + (checkHostKeys ? "" : "-o StrictHostKeyChecking=no -o UserKnownHostsFile=/dev/null ")
+                    + quote(remoteFile) + " " + quote(username + "@" + target.host + ":" + remoteFile + ".part");
+            CommandResult result = SSH.execute(pool, username, privateKeyFile, source.host, command, relayTimeoutMillis);
+            if (! result.isSuccess()) {
+                throw new SSHException("Relay Failed (" + source.host + " -> " + target.host + ")\n" + result.getOutput());
+            }
+
+            SSHSessionPool.PooledSession pooled = borrow(target);
+            boolean reusable = false; // Anything other than success or an SFTP error may have left the session in a bad state
+            try {
+                ChannelSftp sftp = (ChannelSftp) pooled.session.openChannel("sftp");
+                sftp.connect(SSH.CONNECT_TIMEOUT);
+                try {
+                    finish(sftp, target);
+                } finally {
+                    sftp.disconnect();
+                }
+                reusable = true;
+            } catch (JSchException e) {
+                throw new SSHException("SFTP Failed (" + target.host + ")\n" + remoteFile, e);
+            } catch (SftpException e) {
+                reusable = true;
+                throw new SSHException("SFTP Failed (" + target.host + ")\n" + remoteFile, e);
+            } finally {
+                if (reusable) {
+                    pooled.release();
+                } else {
+                    pooled.discard();
+                }
+            }
+        }
+
+        /**
+         * Checks the size of the .part file & renames it into place.
+         */
+        private void finish(ChannelSftp sftp, Worker target) throws SftpException, SSHException {
+            String part = remoteFile + ".part";
+            long partSize = sftp.stat(part).getSize();
+            if (partSize != size) {
+                throw new SSHException("Copied " + partSize + " of " + size + " bytes (" + target.host + ")\n" + part);
+            }
+            try {
+                sftp.rm(remoteFile); // SFTP won't rename over an existing file
+            } catch (SftpException e) {
+                if (e.id != ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                    throw e;
+                }
+            }
+            sftp.rename(part, remoteFile);
+        }
+
+        private SSHSessionPool.PooledSession borrow(Worker target) throws SSHException, InterruptedException {
+            try {
+                return pool.borrow(username, privateKeyFile, target.host);
+            } catch (JSchException e) {
+                throw new SSHException("SSH Failed (" + target.host + ")\n" + remoteFile, e);
+            }
+        }
+    }
+
+    private static final String SEP = "; ";
+
+    private static final TaskPrinter<Void> COPY_PRINTER = new TaskPrinter<Void>() {
+        @Override
+        public String resultToString(Void result) {
+            return "done";
+        }
+    };
+
+    private static String quote(String s) {
+        return "'" + s.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Reads straight out of the mapped regions of the file.
+     * Each upload gets its own one, over duplicates of the shared buffers.
+     */
+    private static final class MappedInputStream extends InputStream {
+
+        private final Deque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+
+        MappedInputStream(List<MappedByteBuffer> regions) {
+            for (MappedByteBuffer region : regions) {
+                buffers.add(region.duplicate());
+            }
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer buf = current();
+            return buf == null ? -1 : buf.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer buf = current();
+            if (buf == null) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer buf = current();
+            return buf == null ? 0 : buf.remaining();
+        }
+
+        private ByteBuffer current() {
+            while (! buffers.isEmpty() && ! buffers.peek().hasRemaining()) {
+                buffers.poll();
+            }
+            return buffers.peek();
+        }
+    }
+}
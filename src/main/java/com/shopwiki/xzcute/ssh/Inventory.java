@@ -0,0 +1,387 @@
+package com.shopwiki.xzcute.ssh;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * A list of workers, indexed for quick selection.
+ *
+ * Each line of an inventory is a host, optionally followed by tags:
+ *
+ *   web17.example.com # role=web,az=1
+ *
+ * Blank lines and lines starting with # are skipped.
+ * Workers are numbered from 1 in the order they appear.
+ *
+ * Selection (all of these are ANDed together):
+ *   -w=1-100,250          worker numbers & ranges
+ *   -tags=role=db,az=1    workers having all of these tags
+ *   -match=web*           hostname glob, or a regex like -match=/web[0-9]+/
+ */
+public class Inventory {
+
+    /**
+     * Files smaller than this are parsed on the calling thread.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 20;
+
+    private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private final List<Worker> workers; // workers.get(w - 1) is worker # w
+    private final ListMultimap<String, Worker> tagToWorkers = ArrayListMultimap.create(); // "role=db" -> workers, in order
+
+    private Inventory(List<Worker> workers) {
+        this.workers = workers;
+        Map<Map<String, String>, List<String>> tagsToKeys = Maps.newIdentityHashMap(); // workers share tag maps, see TagParser
+        for (Worker worker : workers) {
+            List<String> keys = tagsToKeys.get(worker.tags);
+            if (keys == null) {
+                keys = Lists.newArrayList();
+                for (Map.Entry<String, String> tag : worker.tags.entrySet()) {
+                    keys.add(tag.getKey() + "=" + tag.getValue());
+                }
+                tagsToKeys.put(worker.tags, keys);
+            }
+            for (String key : keys) {
+                tagToWorkers.put(key, worker);
+            }
+        }
+    }
+
+    public static Inventory fromLines(Iterable<String> lines) {
+        List<Worker> workers = Lists.newArrayList();
+        TagParser tagParser = new TagParser();
+        for (String line : lines) {
+            String[] hostAndTags = split(line);
+            if (hostAndTags != null) {
+                workers.add(new Worker(workers.size() + 1, hostAndTags[0], tagParser.parse(hostAndTags[1])));
+            }
+        }
+        return new Inventory(ImmutableList.copyOf(workers));
+    }
+
+    /**
+     * Memory-maps the file and, if it is big enough, parses chunks of it in parallel.
+     */
+    public static Inventory fromFile(String filename) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Inventory(parse(buf));
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static List<Worker> parse(final MappedByteBuffer buf) {
+        int size = buf.limit();
+        int numChunks = size < PARALLEL_THRESHOLD ? 1 : Runtime.getRuntime().availableProcessors();
+
+        // Split on line boundaries
+        List<Integer> starts = Lists.newArrayList(0);
+        for (int i = 1; i < numChunks; i++) {
+            int pos = Math.max((int)((long) size * i / numChunks), starts.get(starts.size() - 1));
+            while (pos < size && buf.get(pos) != '\n') {
+                pos++;
+            }
+            starts.add(Math.min(pos + 1, size));
+        }
+        starts.add(size);
+
+        List<List<String[]>> chunks;
+        if (numChunks == 1) {
+            chunks = ImmutableList.of(parseChunk(buf, 0, size));
+        } else {
+            List<Future<List<String[]>>> futures = Lists.newArrayList();
+            for (int i = 0; i < numChunks; i++) {
+                final int start = starts.get(i);
+                final int end = starts.get(i + 1);
+                futures.add(ForkJoinPool.commonPool().submit(new Callable<List<String[]>>() {
+                    @Override
+                    public List<String[]> call() {
+                        return parseChunk(buf, start, end);
+                    }
+                }));
+            }
+            chunks = Lists.newArrayList();
+            for (Future<List<String[]>> future : futures) {
+                try {
+                    chunks.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                } catch (ExecutionException e) {
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+        }
+
+        // Number the workers in file order
+        ImmutableList.Builder<Worker> workers = ImmutableList.builder();
+        TagParser tagParser = new TagParser();
+        int w = 0;
+        for (List<String[]> chunk : chunks) {
+            for (String[] hostAndTags : chunk) {
+                w++;
+                workers.add(new Worker(w, hostAndTags[0], tagParser.parse(hostAndTags[1])));
+            }
+        }
+        return workers.build();
+    }
+
+    /**
+     * @return [host, tags] for each non-blank, non-comment line
+     */
+    private static List<String[]> parseChunk(MappedByteBuffer buf, int start, int end) {
+        List<String[]> lines = Lists.newArrayList();
+        byte[] bytes = new byte[256];
+        int len = 0;
+        for (int i = start; i <= end; i++) {
+            byte b = i < end ? buf.get(i) : (byte) '\n';
+            if (b != '\n') {
+                if (len == bytes.length) {
+                    bytes = Arrays.copyOf(bytes, len * 2);
+                }
+                bytes[len++] = b;
+                continue;
+            }
+            if (len > 0) {
+                String[] hostAndTags = split(new String(bytes, 0, len, Charsets.UTF_8));
+                if (hostAndTags != null) {
+                    lines.add(hostAndTags);
+                }
+                len = 0;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return null if the line is blank or commented-out
+     */
+    private static String[] split(String line) {
+        String s = line.trim();
+        if (s.isEmpty() || s.startsWith("#")) {
+            return null;
+        }
+        int hash = s.indexOf('#');
+        if (hash < 0) {
+            return new String[] { s, "" };
+        }
+        return new String[] { s.substring(0, hash).trim(), s.substring(hash + 1) };
+    }
+
+    /**
+     * Most hosts in a big inventory have one of only a few distinct sets of tags,
+     * so each distinct tags string is parsed once and the resulting map is shared.
+     */
+    private static final class TagParser {
+
+        private final Map<String, Map<String, String>> cache = Maps.newHashMap();
+
+        Map<String, String> parse(String s) {
+            Map<String, String> tags = cache.get(s);
+            if (tags == null) {
+                tags = parseTags(s);
+                cache.put(s, tags);
+            }
+            return tags;
+        }
+    }
+
+    private static Map<String, String> parseTags(String s) {
+        if (s.trim().isEmpty()) {
+            return ImmutableMap.of();
+        }
+        Map<String, String> tags = Maps.newLinkedHashMap();
+        int i = 0;
+        int n = s.length();
+        while (i < n) {
+            while (i < n && isTagSeparator(s.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < n && ! isTagSeparator(s.charAt(i))) {
+                i++;
+            }
+            if (start == i) {
+                break;
+            }
+            String tag = s.substring(start, i);
+            int eq = tag.indexOf('=');
+            String key = eq < 0 ? tag : tag.substring(0, eq);
+            String value = eq < 0 ? "" : tag.substring(eq + 1);
+            if (! tags.containsKey(key)) {
+                tags.put(key, value);
+            }
+        }
+        return ImmutableMap.copyOf(tags);
+    }
+
+    private static boolean isTagSeparator(char c) {
+        return c == ',' || Character.isWhitespace(c);
+    }
+
+    public List<Worker> getWorkers() {
+        return workers;
+    }
+
+    public int size() {
+        return workers.size();
+    }
+
+    public Worker get(int w) {
+        return workers.get(w - 1);
+    }
+
+    /**
+     * @param spec e.g. "1-100,250"
+     */
+    public List<Worker> byNums(String spec) {
+        Set<Integer> ws = Sets.newTreeSet();
+        for (String piece : COMMA_SPLITTER.split(spec)) {
+            int dash = piece.indexOf('-');
+            int from = Integer.parseInt(dash < 0 ? piece : piece.substring(0, dash).trim());
+            int to = dash < 0 ? from : Integer.parseInt(piece.substring(dash + 1).trim());
+            for (int w = Math.max(from, 1); w <= Math.min(to, workers.size()); w++) {
+                ws.add(w);
+            }
+        }
+
+        List<Worker> selected = Lists.newArrayListWithCapacity(ws.size());
+        for (int w : ws) {
+            selected.add(get(w));
+        }
+        return selected;
+    }
+
+    /**
+     * @param spec e.g. "role=db,az=1", a tag without a value matches "host # canary"
+     */
+    public List<Worker> byTags(String spec) {
+        List<Worker> selected = null;
+        for (String tag : COMMA_SPLITTER.split(spec)) {
+            String key = tag.indexOf('=') < 0 ? tag + "=" : tag;
+            List<Worker> withTag = tagToWorkers.get(key);
+            if (selected == null) {
+                selected = withTag;
+            } else {
+                selected = intersect(selected, withTag);
+            }
+        }
+        return selected == null ? workers : ImmutableList.copyOf(selected);
+    }
+
+    /**
+     * @param pattern a glob (* and ?) or a /regex/
+     */
+    public List<Worker> byPattern(String pattern) {
+        Pattern p = toPattern(pattern);
+        List<Worker> selected = Lists.newArrayList();
+        for (Worker worker : workers) {
+            if (p.matcher(worker.host).matches()) {
+                selected.add(worker);
+            }
+        }
+        return selected;
+    }
+
+    private static Pattern toPattern(String pattern) {
+        if (pattern.length() > 1 && pattern.startsWith("/") && pattern.endsWith("/")) {
+            return Pattern.compile(pattern.substring(1, pattern.length() - 1));
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String piece : Splitter.on('*').split(pattern)) {
+            if (regex.length() > 0) {
+                regex.append(".*");
+            }
+            boolean first = true;
+            for (String part : Splitter.on('?').split(piece)) {
+                if (! first) {
+                    regex.append('.');
+                }
+                first = false;
+                if (! part.isEmpty()) {
+                    regex.append(Pattern.quote(part));
+                }
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Applies -w, -tags & -match, in that order.
+     * Each one narrows down what the previous ones selected.
+     */
+    public List<Worker> select(Args args) {
+        List<Worker> selected = workers;
+
+        String nums = args.get("w");
+        if (! Strings.isNullOrEmpty(nums)) {
+            selected = byNums(nums);
+        }
+
+        String tags = args.get("tags");
+        if (! Strings.isNullOrEmpty(tags)) {
+            selected = intersect(selected, byTags(tags));
+        }
+
+        String pattern = args.get("match");
+        if (! Strings.isNullOrEmpty(pattern)) {
+            selected = intersect(selected, byPattern(pattern));
+        }
+
+        return selected;
+    }
+
+    /**
+     * Both lists are in worker order, so this is a merge.
+     */
+    private static List<Worker> intersect(List<Worker> a, List<Worker> b) {
+        if (a.size() == 0 || b.size() == 0) {
+            return Collections.emptyList();
+        }
+        List<Worker> both = Lists.newArrayList();
+        int i = 0;
+        int j = 0;
+        while (i < a.size() && j < b.size()) {
+            int wa = a.get(i).w;
+            int wb = b.get(j).w;
+            if (wa == wb) {
+                both.add(a.get(i));
+                i++;
+                j++;
+            } else if (wa < wb) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return both;
+    }
+}
@@ -0,0 +1,101 @@
+package com.shopwiki.xzcute.ssh;
+
+import java.io.OutputStream;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Splits what JSch writes into lines and hands them to an OutputSink.
+ * Only ever holds one line (at most maxLineBytes) in memory.
+ */
+class LineSplittingOutputStream extends OutputStream {
+
+    private final String host;
+    private final OutputSink.Stream stream;
+    private final OutputSink sink;
+    private final byte[] buf;
+    private int len = 0;
+    private long numBytes = 0;
+    private volatile RuntimeException error = null;
+
+    LineSplittingOutputStream(String host, OutputSink.Stream stream, OutputSink sink, int maxLineBytes) {
+        this.host = host;
+        this.stream = stream;
+        this.sink = sink;
+        this.buf = new byte[maxLineBytes];
+    }
+
+    @Override
+    public void write(int b) {
+        numBytes++;
+        if (b == '\n') {
+            emit(len, true);
+            return;
+        }
+        if (len == buf.length) {
+            emitChunk();
+        }
+        buf[len++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int n) {
+        for (int i = off; i < off + n; i++) {
+            write(b[i]);
+        }
+    }
+
+    /**
+     * Flushes whatever is left of the last line.
+     */
+    @Override
+    public void close() {
+        if (len > 0) {
+            emit(len, true);
+        }
+    }
+
+    /**
+     * The buffer is full, so send everything up to the last complete UTF-8 character.
+     */
+    private void emitChunk() {
+        int end = len;
+        while (end > 0 && (buf[end - 1] & 0xC0) == 0x80) { // continuation byte
+            end--;
+        }
+        if (end > 0 && (buf[end - 1] & 0x80) != 0) { // lead byte of an incomplete character
+            end--;
+        }
+        if (end == 0) {
+            end = len;
+        }
+        emit(end, false);
+    }
+
+    private void emit(int end, boolean endOfLine) {
+        int lineEnd = end;
+        if (endOfLine && lineEnd > 0 && buf[lineEnd - 1] == '\r') {
+            lineEnd--;
+        }
+        String line = new String(buf, 0, lineEnd, Charsets.UTF_8);
+        System.arraycopy(buf, end, buf, 0, len - end);
+        len -= end;
+
+        if (error != null) {
+            return;
+        }
+        try {
+            sink.line(host, stream, line);
+        } catch (RuntimeException e) {
+            error = e; // Don't let it kill the session's I/O thread
+        }
+    }
+
+    long getNumBytes() {
+        return numBytes;
+    }
+
+    RuntimeException getError() {
+        return error;
+    }
+}
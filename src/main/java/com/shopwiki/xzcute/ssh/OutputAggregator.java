@@ -0,0 +1,161 @@
+package com.shopwiki.xzcute.ssh;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Groups hosts whose output is the same, so 2,000 near-identical results get printed once.
+ *
+ * Each result is hashed (after normalizing, if asked to) as it arrives.
+ * The first time an output is seen it is printed, and after that only the host gets recorded.
+ * Only hashes and host lists are kept, never the outputs themselves.
+ * printSummary() then lists which hosts had which output.
+ */
+public class OutputAggregator {
+
+    /**
+     * Masks the parts of an output that differ from host to host before it is hashed.
+     */
+    public enum Normalizer {
+
+        /**
+         * Outputs have to be byte-for-byte identical.
+         */
+        EXACT {
+            @Override
+            public String normalize(String output) {
+                return output;
+            }
+        },
+
+        /**
+         * Masks dates, times, long hex strings (ids, hashes) & all other numbers (PIDs, sizes, percentages),
+         * and collapses runs of spaces (ps pads its columns).
+         */
+        MASKED {
+            @Override
+            public String normalize(String output) {
+                String s = DATE.matcher(output).replaceAll("<date>");
+                s = TIME.matcher(s).replaceAll("<time>");
+                s = HEX.matcher(s).replaceAll("<hex>");
+                s = NUMBER.matcher(s).replaceAll("#");
+                s = SPACES.matcher(s).replaceAll(" ");
+                return s;
+            }
+        };
+
+        private static final Pattern DATE = Pattern.compile("\\d{4}-\\d{2}-\\d{2}|[A-Z][a-z]{2} +\\d{1,2}(?=[ :])");
+        private static final Pattern TIME = Pattern.compile("\\d{1,2}:\\d{2}(:\\d{2}(\\.\\d+)?)?");
+        private static final Pattern HEX = Pattern.compile("\\b(0x)?[0-9a-fA-F]{8,}\\b");
+        private static final Pattern NUMBER = Pattern.compile("\\d+(\\.\\d+)?");
+        private static final Pattern SPACES = Pattern.compile("[ \\t]+");
+
+        public abstract String normalize(String output);
+    }
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private static final class Group {
+        final int num;
+        final List<Worker> workers = Lists.newArrayList();
+
+        Group(int num) {
+            this.num = num;
+        }
+    }
+
+    private final Normalizer normalizer;
+    private final PrintStream out;
+    private final Map<HashCode, Group> groups = Maps.newLinkedHashMap();
+    private int numResults = 0;
+
+    public OutputAggregator(Normalizer normalizer, PrintStream out) {
+        this.normalizer = normalizer;
+        this.out = out;
+    }
+
+    public synchronized void add(Worker worker, CommandResult result) {
+        String header = "exit " + result.exitStatus;
+        add(worker, header, result.getOutput());
+    }
+
+    public synchronized void add(Worker worker, Throwable t) {
+        add(worker, "FAILED", String.valueOf(t));
+    }
+
+    private void add(Worker worker, String header, String output) {
+        numResults++;
+        String normalized = normalizer.normalize(output);
+        HashCode hash = HASH.newHasher()
+                .putString(header, Charsets.UTF_8)
+                .putString(normalized, Charsets.UTF_8)
+                .hash();
+
+        Group group = groups.get(hash);
+        if (group == null) {
+            group = new Group(groups.size() + 1);
+            groups.put(hash, group);
+            out.println("=== Output #" + group.num + " (" + header + ") first seen on " + worker + "\n");
+            out.println(output);
+        }
+        group.workers.add(worker);
+    }
+
+    public synchronized int getNumDistinct() {
+        return groups.size();
+    }
+
+    public synchronized void printSummary() {
+        out.println("=== " + numResults + " hosts, " + groups.size() + " distinct outputs");
+        for (Group group : groups.values()) {
+            out.println("Output #" + group.num + ": " + group.workers.size() + " hosts: " + toRanges(group.workers));
+        }
+    }
+
+    /**
+     * e.g. "1-500,502,510-2000"
+     */
+    static String toRanges(List<Worker> workers) {
+        List<Integer> ws = Lists.newArrayListWithCapacity(workers.size());
+        for (Worker worker : workers) {
+            ws.add(worker.w);
+        }
+        Collections.sort(ws);
+
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < ws.size()) {
+            int j = i;
+            while (j + 1 < ws.size() && ws.get(j + 1) <= ws.get(j) + 1) {
+                j++;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(ws.get(i));
+            if (ws.get(j) > ws.get(i)) {
+                sb.append('-').append(ws.get(j));
+            }
+            i = j + 1;
+        }
+
+        if (workers.size() <= 10) {
+            List<String> hosts = Lists.newArrayList();
+            for (Worker worker : workers) {
+                hosts.add(worker.host);
+            }
+            sb.append(' ').append(hosts);
+        }
+        return sb.toString();
+    }
+}
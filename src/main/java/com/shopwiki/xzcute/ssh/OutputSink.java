@@ -0,0 +1,36 @@
+package com.shopwiki.xzcute.ssh;
+
+import java.io.PrintStream;
+
+/**
+ * Receives a command's output as it arrives, instead of it being buffered into a CommandResult.
+ *
+ * Lines are pushed from the SSH session's I/O thread, without their line terminator.
+ * A line longer than SSH.MAX_LINE_BYTES is delivered in several chunks.
+ * Blocking in line() stops the session from reading, so the server stops sending once the SSH window fills up.
+ * That is the back-pressure: a slow sink slows the command down rather than using more memory.
+ */
+public interface OutputSink {
+
+    enum Stream { STDOUT, STDERR }
+
+    void line(String host, Stream stream, String line);
+
+    /**
+     * Prints each line prefixed by its host, e.g. "web1: ..." or "web1 [err]: ...".
+     */
+    class PrefixingPrintSink implements OutputSink {
+
+        private final PrintStream out;
+
+        public PrefixingPrintSink(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void line(String host, Stream stream, String line) {
+            String prefix = stream == Stream.STDERR ? host + " [err]: " : host + ": ";
+            out.println(prefix + line); // PrintStream is synchronized, so lines from different hosts don't interleave
+        }
+    }
+}
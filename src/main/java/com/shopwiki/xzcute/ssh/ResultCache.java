@@ -0,0 +1,303 @@
+package com.shopwiki.xzcute.ssh;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.shopwiki.xzcute.util.Pretty;
+
+/**
+ * Caches the results of read-only commands (uptime, df -h, ps aux | grep java, ...) by user, host & command,
+ * so re-running the same fleet query within ttlMillis doesn't ssh anywhere.
+ *
+ * Results are kept in memory (LRU, at most maxSize) and, if dir isn't null, on disk too,
+ * one file per result, so separate runs of SSHExecutor share them.
+ * Files older than ttlMillis are deleted when they're read, and when a ResultCache is created
+ * the dir is pruned of expired files & then of the oldest ones, down to maxSize.
+ *
+ * Only commands made entirely of known read-only programs, optionally piped together, are cached.
+ * Anything with redirects, ;, &, $(...) or backticks isn't, and neither is anything run with sudo.
+ */
+public class ResultCache {
+
+    public static final File DEFAULT_DIR = new File(System.getProperty("user.home"), ".xzcute/cache");
+
+    private static final Set<String> READ_ONLY = ImmutableSet.of(
+            "cat", "date", "df", "du", "egrep", "free", "grep", "head", "hostname", "id", "ls", "lsblk", "lscpu",
+            "netstat", "nproc", "pgrep", "ps", "ss", "tail", "uname", "uptime", "w", "wc", "who", "whoami");
+
+    private static final Pattern UNSAFE = Pattern.compile("[;&<>`\\n]|\\$\\(");
+    private static final Splitter PIPE_SPLITTER = Splitter.on('|').trimResults();
+
+    private static final int FILE_VERSION = 1;
+
+    private final long ttlMillis;
+    private final int maxSize;
+    private final File dir;
+    private final Cache<String, CommandResult> memory;
+
+    private final AtomicLong memoryHits = new AtomicLong(0);
+    private final AtomicLong diskHits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong maxHitAge = new AtomicLong(0);
+
+    /**
+     * @param maxSize max # of results in memory, and of files in dir
+     * @param dir null to only cache in memory
+     */
+    public ResultCache(long ttl, TimeUnit unit, int maxSize, File dir) {
+        this.ttlMillis = unit.toMillis(ttl);
+        this.maxSize = maxSize;
+        this.dir = dir;
+        this.memory = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl, unit)
+                .maximumSize(maxSize)
+                .build();
+        pruneDisk();
+    }
+
+    /**
+     * Deletes expired files (& temp files left by runs that died), then the oldest files until at most maxSize are left.
+     */
+    private void pruneDisk() {
+        if (dir == null) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return; // no dir yet
+        }
+
+        long now = System.currentTimeMillis();
+        List<File> kept = Lists.newArrayListWithCapacity(files.length);
+        final Map<File, Long> modified = Maps.newHashMapWithExpectedSize(files.length);
+        for (File file : files) {
+            long lastModified = file.lastModified();
+            if (now - lastModified > ttlMillis) {
+                delete(file);
+            } else if (! file.getName().endsWith(".tmp")) {
+                kept.add(file);
+                modified.put(file, lastModified);
+            }
+        }
+
+        if (kept.size() <= maxSize) {
+            return;
+        }
+        Collections.sort(kept, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(modified.get(a), modified.get(b));
+            }
+        });
+        for (File file : kept.subList(0, kept.size() - maxSize)) {
+            delete(file);
+        }
+    }
+
+    private static void delete(File file) {
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            System.err.println("Couldn't delete cached result " + file + ": " + e);
+        }
+    }
+
+    public static boolean isCacheable(String command) {
+        if (UNSAFE.matcher(command).find()) {
+            return false;
+        }
+        for (String stage : PIPE_SPLITTER.split(command)) {
+            int space = stage.indexOf(' ');
+            String program = space < 0 ? stage : stage.substring(0, space);
+            if (! READ_ONLY.contains(program)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return null if there's no result younger than the TTL
+     */
+    public CommandResult get(String username, String host, String command) {
+        String key = key(username, host, command);
+
+        CommandResult result = memory.getIfPresent(key);
+        if (result != null && result.getAgeMillis() <= ttlMillis) {
+            return hit(result, memoryHits);
+        }
+
+        result = readFromDisk(key, host, command);
+        if (result != null && result.getAgeMillis() <= ttlMillis) {
+            memory.put(key, result);
+            return hit(result, diskHits);
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private CommandResult hit(CommandResult result, AtomicLong hits) {
+        hits.incrementAndGet();
+        long age = result.getAgeMillis();
+        long m;
+        while ((m = maxHitAge.get()) < age && ! maxHitAge.compareAndSet(m, age)) {
+            // retry
+        }
+        return result;
+    }
+
+    public void put(String username, CommandResult result) {
+        String key = key(username, result.host, result.command);
+        CommandResult cached = result.asCached();
+        memory.put(key, cached);
+        writeToDisk(key, cached);
+    }
+
+    private static String key(String username, String host, String command) {
+        return Hashing.murmur3_128().newHasher()
+                .putString(String.valueOf(username), Charsets.UTF_8).putByte((byte) 0)
+                .putString(host, Charsets.UTF_8).putByte((byte) 0)
+                .putString(command, Charsets.UTF_8)
+                .hash().toString();
+    }
+
+    private CommandResult readFromDisk(String key, String host, String command) {
+        if (dir == null) {
+            return null;
+        }
+        File file = new File(dir, key);
+        long lastModified = file.lastModified();
+        if (lastModified == 0) {
+            return null; // not there
+        }
+        if (System.currentTimeMillis() - lastModified > ttlMillis) {
+            delete(file);
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != FILE_VERSION) {
+                delete(file);
+                return null;
+            }
+            String cachedHost = readString(in);
+            String cachedCommand = readString(in);
+            if (! cachedHost.equals(host) || ! cachedCommand.equals(command)) {
+                return null; // hash collision
+            }
+            String stdout = readString(in);
+            String stderr = readString(in);
+            int exitStatus = in.readInt();
+            long startTime = in.readLong();
+            long connectedTime = in.readLong();
+            long endTime = in.readLong();
+            return new CommandResult(host, command, stdout, stderr, exitStatus, startTime, connectedTime, endTime, true);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.err.println("Couldn't read cached result for " + host + ": " + e);
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, CommandResult result) {
+        if (dir == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(FILE_VERSION);
+            writeString(out, result.host);
+            writeString(out, result.command);
+            writeString(out, result.stdout);
+            writeString(out, result.stderr);
+            out.writeInt(result.exitStatus);
+            out.writeLong(result.startTime);
+            out.writeLong(result.connectedTime);
+            out.writeLong(result.endTime);
+            out.flush();
+
+            // Outputs can be sensitive, so only this user can read them
+            Path dirPath = dir.toPath();
+            if (! dir.isDirectory()) {
+                Files.createDirectories(dirPath);
+                try {
+                    Files.setPosixFilePermissions(dirPath, PosixFilePermissions.fromString("rwx------"));
+                } catch (UnsupportedOperationException e) {
+                    // Not a POSIX filesystem
+                }
+            }
+
+            // Write then rename, so other runs never see half a file
+            Path tmp = Files.createTempFile(dirPath, key, ".tmp");
+            Files.write(tmp, bytes.toByteArray());
+            Files.move(tmp, new File(dir, key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Couldn't cache result for " + result.host + ": " + e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    public long getHits() {
+        return memoryHits.get() + diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * e.g. "28 hits (3 from disk), 2 misses, results up to 12.3 seconds old"
+     */
+    public String getStats() {
+        String stats = getHits() + " hits (" + diskHits.get() + " from disk), " + misses.get() + " misses";
+        if (getHits() > 0) {
+            stats += ", results up to " + Pretty.time(maxHitAge.get()) + " old";
+        }
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return "ttl=" + Pretty.time(ttlMillis) + (dir != null ? " dir=" + dir : "");
+    }
+}
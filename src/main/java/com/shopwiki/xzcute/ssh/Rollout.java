@@ -0,0 +1,111 @@
+package com.shopwiki.xzcute.ssh;
+
+import java.util.List;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * How to fan a command out over a fleet:
+ * at most maxInFlight hosts at a time, in batches (e.g. 5% of the fleet at a time),
+ * optionally starting with a single canary host,
+ * and aborting once the fraction of failed hosts goes over maxFailureRate.
+ *
+ * -parallel=N -batch=5% (or -batch=50) -maxFailures=10% -canary=true
+ */
+public class Rollout {
+
+    public final int maxInFlight;       // <= 0 means no limit
+    public final int batchSize;         // > 0 means a fixed number of hosts per batch
+    public final double batchFraction;  // otherwise this fraction of the fleet per batch, <= 0 means one batch
+    public final double maxFailureRate; // 1.0 means never abort
+    public final boolean canary;
+
+    public Rollout(int maxInFlight, int batchSize, double batchFraction, double maxFailureRate, boolean canary) {
+        if (maxFailureRate < 0 || batchFraction > 1) {
+            throw new IllegalArgumentException();
+        }
+        this.maxInFlight = maxInFlight;
+        this.batchSize = batchSize;
+        this.batchFraction = batchFraction;
+        this.maxFailureRate = maxFailureRate;
+        this.canary = canary;
+    }
+
+    static boolean isRequested(Args args) {
+        return args.hasFlag("batch") || args.hasFlag("maxFailures") || args.hasFlag("canary");
+    }
+
+    static Rollout fromArgs(Args args) {
+        int maxInFlight = args.hasFlag("parallel") ? Integer.parseInt(args.get("parallel")) : 0;
+
+        int batchSize = 0;
+        double batchFraction = 0;
+        String batch = args.get("batch");
+        if (! Strings.isNullOrEmpty(batch)) {
+            if (batch.endsWith("%")) {
+                batchFraction = parseFraction(batch);
+            } else {
+                batchSize = Integer.parseInt(batch);
+            }
+        }
+
+        double maxFailureRate = args.hasFlag("maxFailures") ? parseFraction(args.get("maxFailures")) : 1.0;
+        boolean canary = args.hasFlag("canary");
+
+        return new Rollout(maxInFlight, batchSize, batchFraction, maxFailureRate, canary);
+    }
+
+    /**
+     * "10%" or "0.1"
+     */
+    private static double parseFraction(String s) {
+        if (s.endsWith("%")) {
+            return Double.parseDouble(s.substring(0, s.length() - 1)) / 100;
+        }
+        return Double.parseDouble(s);
+    }
+
+    public int getMaxInFlight(int numWorkers) {
+        return maxInFlight > 0 ? Math.min(maxInFlight, numWorkers) : numWorkers;
+    }
+
+    public int getBatchSize(int numWorkers) {
+        if (batchSize > 0) {
+            return batchSize;
+        }
+        if (batchFraction > 0) {
+            return Math.max(1, (int)Math.ceil(numWorkers * batchFraction));
+        }
+        return Math.max(1, numWorkers);
+    }
+
+    /**
+     * @return the batches to run, in order. If there is a canary, it is the first batch on its own.
+     */
+    public List<List<Worker>> plan(List<Worker> workers) {
+        List<List<Worker>> batches = Lists.newArrayList();
+        List<Worker> rest = workers;
+
+        if (canary && ! workers.isEmpty()) {
+            batches.add(ImmutableList.of(workers.get(0)));
+            rest = workers.subList(1, workers.size());
+        }
+
+        int size = getBatchSize(rest.size());
+        for (int i = 0; i < rest.size(); i += size) {
+            batches.add(ImmutableList.copyOf(rest.subList(i, Math.min(i + size, rest.size()))));
+        }
+        return batches;
+    }
+
+    @Override
+    public String toString() {
+        String batch = batchSize > 0 ? String.valueOf(batchSize) : batchFraction > 0 ? (batchFraction * 100) + "%" : "all";
+        return "maxInFlight=" + (maxInFlight > 0 ? maxInFlight : "all")
+             + " batch=" + batch
+             + " maxFailures=" + (maxFailureRate * 100) + "%"
+             + " canary=" + canary;
+    }
+}
@@ -1,10 +1,29 @@
 package com.shopwiki.xzcute.ssh;
 
 import java.io.*;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
 import com.jcraft.jsch.*;
+import com.shopwiki.xzcute.DaemonScheduledExecutor;
+import com.shopwiki.xzcute.DaemonThreadFactory;
+import com.shopwiki.xzcute.jfr.SSHCommandEvent;
 
 /**
  * Copied & modified from shopwiki repo.
@@ -56,69 +75,459 @@ public class SSH {
         }
     }
 
+    /**
+     * @return true if t is an SSH failure that may well not happen again: failing to connect or losing the connection.
+     *         Timeouts and non-zero exit codes don't count.
+     */
+    public static boolean isTransient(Throwable t) {
+        if (t instanceof ExecutionException || t instanceof CompletionException) {
+            t = t.getCause();
+        }
+        return t instanceof SSHException && t.getCause() instanceof JSchException;
+    }
+
+    /**
+     * Use as a timeout to let commands run for as long as they like.
+     */
+    public static final long NO_TIMEOUT = 0L;
+
+    /**
+     * Longest line an OutputSink gets in one piece.
+     */
+    public static final int MAX_LINE_BYTES = 8 * 1024;
+
+    private static final int NUM_CONNECT_THREADS = 32;
+
+    private static final SSHSessionPool SESSION_POOL = new SSHSessionPool();
+
+    // Gets sessions & opens channels for executeAsync(). Running commands don't tie up any of these threads.
+    private static final ThreadPoolExecutor CONNECTOR = new ThreadPoolExecutor(
+            NUM_CONNECT_THREADS, NUM_CONNECT_THREADS,
+            1L, TimeUnit.MINUTES,
+            new LinkedBlockingQueue<Runnable>(),
+            DaemonThreadFactory.getInstance("SSH-connect", true));
+
+    static {
+        CONNECTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static final ScheduledExecutorService TIMEOUTS = new DaemonScheduledExecutor(1, "SSH-timeouts");
+
+    /**
+     * The pool that sendCommand() borrows sessions from.
+     */
+    public static SSHSessionPool getSessionPool() {
+        return SESSION_POOL;
+    }
+
     public static String sendCommand(String username, String privateKeyFile, String host, String command) throws SSHException {
         return sendCommand(username, privateKeyFile, host, command, false);
     }
 
     public static String sendCommand(String username, String privateKeyFile, String host, String command, boolean checkExitCode) throws SSHException {
-        Session session = null;
+        return sendCommand(SESSION_POOL, username, privateKeyFile, host, command, checkExitCode);
+    }
+
+    /**
+     * @return stdout followed by stderr
+     */
+    public static String sendCommand(SSHSessionPool pool, String username, String privateKeyFile, String host, String command, boolean checkExitCode) throws SSHException {
+        CommandResult result = execute(pool, username, privateKeyFile, host, command, NO_TIMEOUT);
+        String output = result.getOutput();
+
+        if (checkExitCode && ! result.isSuccess()) {
+            throw new SSHException(output);
+        }
+
+        return output;
+    }
+
+    public static CommandResult execute(String username, String privateKeyFile, String host, String command, long timeoutMillis) throws SSHException {
+        return execute(SESSION_POOL, username, privateKeyFile, host, command, timeoutMillis);
+    }
+
+    /**
+     * Blocks until the command finishes, without polling.
+     * If it runs for longer than timeoutMillis, its channel is closed and an SSHException is thrown.
+     */
+    public static CommandResult execute(SSHSessionPool pool, String username, String privateKeyFile, String host, String command, long timeoutMillis) throws SSHException {
+        return execute(pool, username, privateKeyFile, host, command, timeoutMillis, null);
+    }
+
+    /**
+     * Like execute(), but output is pushed to the sink as it arrives,
+     * so the returned CommandResult has empty stdout & stderr.
+     * Memory use doesn't depend on how much the command prints.
+     */
+    public static CommandResult execute(SSHSessionPool pool, String username, String privateKeyFile, String host, String command, long timeoutMillis, OutputSink sink) throws SSHException {
+        CompletableFuture<CommandResult> future = new CompletableFuture<CommandResult>();
+        start(pool, username, privateKeyFile, host, command, timeoutMillis, sink, System.currentTimeMillis(), future);
         try {
-            session = createSession(username, privateKeyFile, host);
-            ChannelExec channel = (ChannelExec)session.openChannel("exec");
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new SSHException("Interrupted (" + host + ")\n" + command, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SSHException) {
+                throw (SSHException) cause;
+            }
+            throw Throwables.propagate(cause);
+        }
+    }
+
+    public static CompletableFuture<CommandResult> executeAsync(String username, String privateKeyFile, String host, String command, long timeoutMillis) {
+        return executeAsync(SESSION_POOL, username, privateKeyFile, host, command, timeoutMillis, null);
+    }
+
+    public static CompletableFuture<CommandResult> executeAsync(String username, String privateKeyFile, String host, String command, long timeoutMillis, OutputSink sink) {
+        return executeAsync(SESSION_POOL, username, privateKeyFile, host, command, timeoutMillis, sink);
+    }
+
+    /**
+     * Doesn't block. Connecting happens on a small shared pool of threads,
+     * and the returned future is completed by the session's own I/O thread when the channel closes.
+     * It completes exceptionally with an SSHException if connecting fails or the command times out.
+     * Cancelling it closes the channel.
+     *
+     * @param sink if not null, output is streamed to it instead of being kept in the CommandResult
+     */
+    public static CompletableFuture<CommandResult> executeAsync(
+            final SSHSessionPool pool,
+            final String username,
+            final String privateKeyFile,
+            final String host,
+            final String command,
+            final long timeoutMillis,
+            final OutputSink sink
+            ) {
+        final long startTime = System.currentTimeMillis();
+        final CompletableFuture<CommandResult> future = new CompletableFuture<CommandResult>();
+        record(future, host, command);
+        CONNECTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                start(pool, username, privateKeyFile, host, command, timeoutMillis, sink, startTime, future);
+            }
+        });
+        return future;
+    }
+
+    // See SSHExecutor.withSudo(), the password mustn't end up in a recording
+    private static final Pattern SUDO_PASSWORD = Pattern.compile("^echo .*? \\| sudo -S ");
+
+    /**
+     * Records a JFR event when the command finishes, if JFR is recording SSHCommandEvents.
+     */
+    private static void record(CompletableFuture<CommandResult> future, final String host, final String command) {
+        final SSHCommandEvent event = new SSHCommandEvent();
+        if (! event.isEnabled()) {
+            return;
+        }
+        event.begin();
+        future.whenComplete(new BiConsumer<CommandResult, Throwable>() {
+            @Override
+            public void accept(CommandResult result, Throwable t) {
+                event.end();
+                if (! event.shouldCommit()) {
+                    return;
+                }
+                event.host = host;
+                event.command = SUDO_PASSWORD.matcher(command).replaceFirst("echo *** | sudo -S ");
+                event.exitStatus = result != null ? result.exitStatus : -1;
+                event.connectMillis = result != null ? result.getConnectMillis() : -1;
+                event.exception = t != null ? t.toString() : null;
+                event.commit();
+            }
+        });
+    }
+
+    private static void start(
+            SSHSessionPool pool,
+            String username,
+            String privateKeyFile,
+            String host,
+            String command,
+            long timeoutMillis,
+            OutputSink sink,
+            long startTime,
+            CompletableFuture<CommandResult> future
+            ) {
+        try {
+            while (! future.isDone()) {
+                SSHSessionPool.PooledSession pooled = pool.borrow(username, privateKeyFile, host);
+                if (tryStart(pooled, host, command, timeoutMillis, sink, startTime, future)) {
+                    return;
+                }
+                // The server may have dropped an idle session, so try again on a fresh one
+            }
+        } catch (JSchException e) {
+            future.completeExceptionally(new SSHException("SSH Failed (" + host + ")\n" + command, e));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(new SSHException("Interrupted waiting for an SSH session (" + host + ")\n" + command, e));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * @return false if a reused session turned out to be dead
+     */
+    private static boolean tryStart(
+            SSHSessionPool.PooledSession pooled,
+            String host,
+            String command,
+            long timeoutMillis,
+            OutputSink sink,
+            long startTime,
+            CompletableFuture<CommandResult> future
+            ) throws JSchException {
+
+        ChannelExec channel = null;
+        RunningCommand running = null;
+        try {
+            channel = (ChannelExec)pooled.session.openChannel("exec");
 
             // Gross hack to enable password-less sudo -Rob
             if (command.contains("sudo ")) {
                 channel.setPty(true);
             }
 
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            channel.setOutputStream(baos);
-            channel.setErrStream(baos);
+            running = new RunningCommand(pooled, channel, host, command, sink, startTime, future);
+            channel.setOutputStream(running.stdout);
+            channel.setErrStream(running.stderr);
 
             channel.setCommand(command);
             channel.connect();
+        } catch (JSchException e) {
+            if (running != null) {
+                running.finished.set(true);
+            }
+            if (channel != null) {
+                channel.disconnect();
+            }
+            pooled.discard();
+            if (pooled.isReused()) {
+                return false;
+            }
+            throw e;
+        }
+
+        running.connected(timeoutMillis);
+        return true;
+    }
+
+    /**
+     * Completes its future once the channel is both connected and closed.
+     * JSch closes the stderr stream when the server closes the channel (after sending the exit status),
+     * so that is what drives completion instead of polling channel.isClosed().
+     */
+    private static final class RunningCommand {
 
-            while (! channel.isClosed()) {
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    // do nothing
+        final SSHSessionPool.PooledSession pooled;
+        final ChannelExec channel;
+        final String host;
+        final String command;
+        final long startTime;
+        final CompletableFuture<CommandResult> future;
+
+        // Either ByteArrayOutputStreams or LineSplittingOutputStreams
+        final OutputStream stdout;
+        final OutputStream stderrTarget;
+
+        // JSch closes this when the channel closes
+        final OutputStream stderr;
+
+        final AtomicInteger pending = new AtomicInteger(2); // connected & closed
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        volatile long connectedTime;
+        volatile ScheduledFuture<?> timeout;
+
+        RunningCommand(
+                SSHSessionPool.PooledSession pooled,
+                ChannelExec channel,
+                String host,
+                String command,
+                OutputSink sink,
+                long startTime,
+                CompletableFuture<CommandResult> future
+                ) {
+            this.pooled = pooled;
+            this.channel = channel;
+            this.host = host;
+            this.command = command;
+            this.startTime = startTime;
+            this.future = future;
+
+            if (sink == null) {
+                stdout = new ByteArrayOutputStream();
+                stderrTarget = new ByteArrayOutputStream();
+            } else {
+                stdout = new LineSplittingOutputStream(host, OutputSink.Stream.STDOUT, sink, MAX_LINE_BYTES);
+                stderrTarget = new LineSplittingOutputStream(host, OutputSink.Stream.STDERR, sink, MAX_LINE_BYTES);
+            }
+
+            stderr = new FilterOutputStream(stderrTarget) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
                 }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        out.close();
+                    } finally {
+                        closed();
+                    }
+                }
+            };
+        }
+
+        void connected(final long timeoutMillis) {
+            connectedTime = System.currentTimeMillis();
+
+            future.whenComplete(new BiConsumer<CommandResult, Throwable>() {
+                @Override
+                public void accept(CommandResult result, Throwable t) {
+                    if (t instanceof CancellationException) {
+                        abort(null);
+                    }
+                }
+            });
+
+            if (timeoutMillis > 0) {
+                timeout = TIMEOUTS.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        String message = "Timed out after " + timeoutMillis + " millis (" + host + ")\n" + command;
+                        abort(new SSHException(message, new TimeoutException()));
+                    }
+                }, timeoutMillis, TimeUnit.MILLISECONDS);
             }
+
+            arrive();
+        }
+
+        void closed() {
+            arrive();
+        }
+
+        private void arrive() {
+            if (pending.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (! finished.compareAndSet(false, true)) {
+                return;
+            }
+            cancelTimeout();
+
+            int exitStatus = channel.getExitStatus();
+            boolean lost = exitStatus == -1 && ! pooled.session.isConnected();
             channel.disconnect();
 
-            String output = new String(baos.toByteArray(), Charsets.UTF_8);
+            if (lost) {
+                pooled.discard();
+                future.completeExceptionally(new SSHException("SSH connection lost (" + host + ")\n" + command, new JSchException("session is down")));
+                return;
+            }
+
+            pooled.release();
 
-            if (checkExitCode && channel.getExitStatus() != 0) {
-                throw new SSHException(output);
+            RuntimeException sinkError = getSinkError();
+            if (sinkError != null) {
+                future.completeExceptionally(new SSHException("OutputSink failed (" + host + ")\n" + command, sinkError));
+                return;
             }
 
-            return output;
-        } catch (JSchException e) {
-            throw new SSHException("SSH Failed (" + host + ")\n" + command, e);
-        } finally {
-            if (session != null) {
-                session.disconnect();
+            CommandResult result = new CommandResult(
+                    host,
+                    command,
+                    toString(stdout),
+                    toString(stderrTarget),
+                    exitStatus,
+                    startTime,
+                    connectedTime,
+                    System.currentTimeMillis());
+            future.complete(result);
+        }
+
+        /**
+         * @param cause null if the future was cancelled
+         */
+        void abort(SSHException cause) {
+            if (! finished.compareAndSet(false, true)) {
+                return;
             }
+            cancelTimeout();
+            if (cause != null) {
+                future.completeExceptionally(cause);
+            }
+            channel.disconnect();
+            pooled.discard(); // The remote command may still be running, so don't hand this session to anyone else
         }
-    }
 
-    private static Session createSession(String username, String privateKeyFile, String host) throws JSchException {
-        JSch jsch = new JSch();
+        private RuntimeException getSinkError() {
+            if (stdout instanceof LineSplittingOutputStream) {
+                // stdout gets closed at EOF, so it has already flushed its last line
+                RuntimeException e = ((LineSplittingOutputStream) stdout).getError();
+                return e != null ? e : ((LineSplittingOutputStream) stderrTarget).getError();
+            }
+            return null;
+        }
 
-        if (privateKeyFile != null) {
-            jsch.addIdentity(privateKeyFile);
-        } else {
-            findAndAddIdentities(jsch);
+        private static String toString(OutputStream out) {
+            if (out instanceof ByteArrayOutputStream) {
+                return new String(((ByteArrayOutputStream) out).toByteArray(), Charsets.UTF_8);
+            }
+            return "";
         }
 
+        private void cancelTimeout() {
+            ScheduledFuture<?> t = timeout;
+            if (t != null) {
+                t.cancel(false);
+            }
+        }
+    }
+
+    static Session createSession(String username, String privateKeyFile, String host) throws JSchException {
+        JSch jsch = getJSch(privateKeyFile);
         Session session = jsch.getSession(username, host, 22);
         session.setUserInfo(USER_INFO);
         session.setTimeout(CONNECT_TIMEOUT);
+        session.setDaemonThread(true); // pooled sessions shouldn't keep the JVM alive
         session.connect(CONNECT_TIMEOUT);
         return session;
     }
 
+    private static final String DEFAULT_IDENTITIES = "";
+
+    // One JSch per private key file, so identity files are only read & parsed once
+    private static final Map<String, JSch> keyFileToJSch = Maps.newHashMap();
+
+    private static synchronized JSch getJSch(String privateKeyFile) throws JSchException {
+        String key = privateKeyFile != null ? privateKeyFile : DEFAULT_IDENTITIES;
+        JSch jsch = keyFileToJSch.get(key);
+        if (jsch != null) {
+            return jsch;
+        }
+
+        jsch = new JSch();
+        if (privateKeyFile != null) {
+            jsch.addIdentity(privateKeyFile);
+        } else {
+            findAndAddIdentities(jsch);
+        }
+        keyFileToJSch.put(key, jsch);
+        return jsch;
+    }
+
     private static void findAndAddIdentities(JSch jsch) {
         String home = System.getProperty("user.home", "");
         File dir = new File(home + "/.ssh");
@@ -150,8 +559,15 @@ public class SSH {
         String host = args.get("host");
         String cmd = args.get("cmd");
         boolean checkExitCode = args.hasFlag("check");
+        long timeoutMillis = args.hasFlag("timeout") ? TimeUnit.SECONDS.toMillis(Long.parseLong(args.get("timeout"))) : NO_TIMEOUT;
+
+        CommandResult result = execute(user, key, host, cmd, timeoutMillis);
+        String out = result.getOutput();
+
+        if (checkExitCode && ! result.isSuccess()) {
+            throw new SSHException(out);
+        }
 
-        String out = sendCommand(user, key, host, cmd, checkExitCode);
         System.out.println(out);
     }
 }
@@ -1,21 +1,32 @@
 package com.shopwiki.xzcute.ssh;
 
+import java.io.IOException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.shopwiki.xzcute.DaemonScheduledExecutor;
+import com.shopwiki.xzcute.HedgePolicy;
+import com.shopwiki.xzcute.RetryPolicy;
 import com.shopwiki.xzcute.VerboseThreadPoolExecutor;
 import com.shopwiki.xzcute.VerboseThreadPoolExecutor.TaskPrinter;
 import com.shopwiki.xzcute.ssh.SSH.SSHException;
+import com.shopwiki.xzcute.util.Pretty;
 import com.shopwiki.xzcute.util.UTF8;
 
 /**
@@ -28,6 +39,23 @@ public class SSHExecutor {
     private final String _sudoPassword;
     private final List<Worker> _workers;
     private final boolean _verbose; // TODO: Get rid of this and make the methods that use it taken an extra param ???
+    private RetryPolicy _retryPolicy = null;
+    private HedgePolicy _hedgePolicy = null;
+    private ResultCache _resultCache = null;
+    private long _taskTimeoutMillis = 0L;
+
+    // Starts hedged copies of commands for commandWorkersRolling(), which then run without a thread of their own
+    private static final ScheduledExecutorService HEDGE_TIMER = new DaemonScheduledExecutor(1, "SSH-hedge");
+
+    // For the async modes, which close each session once its command is done instead of pooling it
+    private static final SSHSessionPool FAN_OUT_SESSIONS = SSHFanOut.newSessionPool(SSHFanOut.DEFAULT_MAX_SESSIONS);
+
+    private static final Predicate<Throwable> IS_TRANSIENT = new Predicate<Throwable>() {
+        @Override
+        public boolean apply(Throwable t) {
+            return SSH.isTransient(t);
+        }
+    };
 
     private SSHExecutor(Args args) throws Exception {
         this(Worker.get(args), args);
@@ -35,6 +63,21 @@ public class SSHExecutor {
 
     private SSHExecutor(Collection<Worker> workers, Args args) throws Exception {
         this(workers, args.get("user"), args.get("key"), args.hasFlag("sudo"), args.hasFlag("quiet"));
+
+        if (args.hasFlag("retries")) {
+            int retries = Integer.parseInt(args.get("retries"));
+            setRetryPolicy(new RetryPolicy(retries + 1, 1, 30, TimeUnit.SECONDS));
+        }
+        if (args.hasFlag("hedge")) {
+            setHedgePolicy(new HedgePolicy());
+        }
+        if (args.hasFlag("cache")) {
+            long ttlSeconds = args.hasFlag("cacheTtl") ? Long.parseLong(args.get("cacheTtl")) : 60;
+            setResultCache(new ResultCache(ttlSeconds, TimeUnit.SECONDS, 100000, ResultCache.DEFAULT_DIR));
+        }
+        if (args.hasFlag("taskTimeout")) {
+            setTaskTimeout(Long.parseLong(args.get("taskTimeout")), TimeUnit.SECONDS);
+        }
     }
 
     public SSHExecutor(Collection<Worker> workers, String username, String sshKeyFile, boolean sudo, boolean quiet) throws Exception {
@@ -76,39 +119,114 @@ public class SSHExecutor {
         return _verbose;
     }
 
+    /**
+     * Only transient failures (see SSH.isTransient) get retried, not timeouts or non-zero exit codes.
+     * -retries=N
+     *
+     * @param retryPolicy null for no retries
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        _retryPolicy = retryPolicy == null ? null : retryPolicy.retryOn(IS_TRANSIENT);
+    }
+
+    /**
+     * Every mode closes a command's channel & fails it once it has run for longer than this,
+     * so one hung host (e.g. a df stuck on a stale NFS mount) doesn't hold up the whole run.
+     * In the rolling mode it's also the task timeout: a worker whose command (including any retries & hedges)
+     * runs for longer than this fails with a TaskTimeoutException & counts against the rollout.
+     * -taskTimeout=<seconds>
+     *
+     * @param timeout 0 for none
+     */
+    public void setTaskTimeout(long timeout, TimeUnit unit) {
+        _taskTimeoutMillis = unit.toMillis(timeout);
+    }
+
+    /**
+     * Only for idempotent commands, since a slow worker may end up running the command twice.
+     * -hedge=true
+     *
+     * @param hedgePolicy null for no hedging
+     */
+    public void setHedgePolicy(HedgePolicy hedgePolicy) {
+        _hedgePolicy = hedgePolicy;
+    }
+
+    /**
+     * Used by the async modes, for read-only commands only (see ResultCache).
+     * -cache=true -cacheTtl=<seconds>
+     *
+     * @param resultCache null for no caching
+     */
+    public void setResultCache(ResultCache resultCache) {
+        _resultCache = resultCache;
+    }
+
     private void commandWorkers(String command, Args args) throws SSHException, InterruptedException {
+        if (args.hasFlag("stream")) {
+            int maxInFlight = args.hasFlag("parallel") ? Integer.parseInt(args.get("parallel")) : 0;
+            commandWorkersStreaming(command, new OutputSink.PrefixingPrintSink(UTF8.out), maxInFlight);
+            return;
+        }
+        if (args.hasFlag("aggregate")) {
+            OutputAggregator.Normalizer normalizer = args.get("aggregate").equalsIgnoreCase("exact")
+                    ? OutputAggregator.Normalizer.EXACT
+                    : OutputAggregator.Normalizer.MASKED;
+            int maxInFlight = args.hasFlag("parallel") ? Integer.parseInt(args.get("parallel")) : 0;
+            commandWorkersAggregated(command, normalizer, maxInFlight);
+            return;
+        }
+        if (Rollout.isRequested(args)) {
+            commandWorkersRolling(command, Rollout.fromArgs(args));
+            return;
+        }
         boolean serial = args.hasFlag("serial");
         boolean noWait = args.hasFlag("noWait");
-        commandWorkers(command, serial, noWait);
+        int maxInFlight = args.hasFlag("parallel") ? Integer.parseInt(args.get("parallel")) : 0;
+        commandWorkers(command, serial, noWait, maxInFlight);
+    }
+
+    private String withSudo(String command) {
+        if (_sudoPassword != null) {
+            return "echo " + _sudoPassword + " | sudo -S " + command;
+        }
+        return command;
     }
 
     public void commandWorkers(String command, boolean serial, boolean noWait) throws SSHException, InterruptedException {
+        commandWorkers(command, serial, noWait, 0);
+    }
+
+    /**
+     * The async modes keep at most SSHFanOut.DEFAULT_MAX_SESSIONS sessions (& their reader threads) open at once, however big the fleet is.
+     *
+     * @param maxInFlight max # of workers running the command at once, <= 0 for no limit
+     */
+    public void commandWorkers(String command, boolean serial, boolean noWait, int maxInFlight) throws SSHException, InterruptedException {
         System.out.println("Commanding workers:\n" + command + "\n");
 
-        if (_sudoPassword != null) {
-            command = "echo " + _sudoPassword + " | sudo -S " + command;
-        }
+        command = withSudo(command);
 
         if (serial) {
             _commandWorkersSerial(command);
         } else if (noWait) {
-            _commandWorkersAsyncNoWait(command);
+            _commandWorkersAsyncNoWait(command, maxInFlight);
         } else {
-            _commandWorkersAsyncOrdered(command);
+            _commandWorkersAsyncOrdered(command, maxInFlight);
         }
     }
 
     private void _commandWorkersSerial(String command) throws SSHException {
         for (Worker worker : _workers) {
             System.out.println(worker + "\n");
-            String result = SSH.sendCommand(_username, _sshKeyFile, worker.host, command);
+            String result = SSH.execute(_username, _sshKeyFile, worker.host, command, _taskTimeoutMillis).getOutput();
             if (_verbose) {
                 UTF8.out.println(result);
             }
         }
     }
 
-    private class Task implements Callable<String> {
+    private class Task implements Callable<CommandResult> {
         public final Worker worker;
         public final String command;
 
@@ -118,8 +236,8 @@ public class SSHExecutor {
         }
 
         @Override
-        public String call() throws SSHException {
-            return SSH.sendCommand(_username, _sshKeyFile, worker.host, command);
+        public CommandResult call() throws SSHException {
+            return SSH.execute(_username, _sshKeyFile, worker.host, command, _taskTimeoutMillis);
         }
 
         @Override
@@ -128,82 +246,413 @@ public class SSHExecutor {
         }
     }
 
-    private void _commandWorkersAsyncNoWait(String command) throws InterruptedException {
+    private SSHFanOut newFanOut(int maxInFlight, OutputSink sink) {
+        return new SSHFanOut(FAN_OUT_SESSIONS, _username, _sshKeyFile, maxInFlight, _taskTimeoutMillis, sink)
+                .setRetryPolicy(_retryPolicy)
+                .setHedgePolicy(sink == null ? _hedgePolicy : null) // Don't stream a hedged worker's output twice
+                .setResultCache(_resultCache);
+    }
+
+    /**
+     * Hedged with HedgePolicy.hedgeAsync(), so both copies of the command run on SSH's I/O threads
+     * & the only thread it ties up is the worker waiting for the result, however many hosts are hedged.
+     */
+    private class HedgedTask implements Callable<CommandResult> {
+        private final Task task;
+
+        HedgedTask(Task task) {
+            this.task = task;
+        }
+
+        @Override
+        public CommandResult call() throws SSHException, InterruptedException {
+            CompletableFuture<CommandResult> future = _hedgePolicy.hedgeAsync(new Supplier<CompletableFuture<CommandResult>>() {
+                @Override
+                public CompletableFuture<CommandResult> get() {
+                    return SSH.executeAsync(_username, _sshKeyFile, task.worker.host, task.command, _taskTimeoutMillis);
+                }
+            }, HEDGE_TIMER);
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                future.cancel(true); // e.g. the task timed out, so close both copies' channels
+                throw e;
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), SSHException.class);
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return task.toString();
+        }
+    }
 
-        ExecutorService executor = Executors.newFixedThreadPool(_workers.size());
-        ExecutorCompletionService<String> ecs = new ExecutorCompletionService<String>(executor);
+    /**
+     * Wraps the task with the retry & hedge policies, if any.
+     */
+    private Callable<CommandResult> withPolicies(Task task) {
+        Callable<CommandResult> callable = task;
+        if (_hedgePolicy != null) {
+            callable = new HedgedTask(task);
+        }
+        if (_retryPolicy != null) {
+            callable = _retryPolicy.wrap(callable);
+        }
+        return callable;
+    }
 
-        Map<Future<String>, Worker> futureToWorker = Maps.newHashMap();
+    private void printPolicyStats() {
+        if (_hedgePolicy != null) {
+            System.out.println("Hedging: " + _hedgePolicy);
+        }
+        if (_resultCache != null) {
+            System.out.println("Cache: " + _resultCache.getStats());
+        }
+    }
 
-        for (final Worker worker : _workers) {
-            Task task = new Task(worker, command);
-            Future<String> future = ecs.submit(task);
-            futureToWorker.put(future, worker);
+    private static void await(CompletableFuture<Void> future) throws InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
         }
-        executor.shutdown();
+    }
+
+    // Fan-out listeners are called from many sessions' I/O threads at once
+    private static final Object PRINT_LOCK = new Object();
+
+    private void _commandWorkersAsyncNoWait(String command, int maxInFlight) throws InterruptedException {
+
+        SSHFanOut.Listener listener = new SSHFanOut.Listener() {
+            @Override
+            public void completed(Worker worker, CommandResult result) {
+                if (_verbose) {
+                    synchronized (PRINT_LOCK) {
+                        printResult(worker, result);
+                    }
+                }
+            }
+
+            @Override
+            public void failed(Worker worker, Throwable t) {
+                if (_verbose) {
+                    synchronized (PRINT_LOCK) {
+                        printFailure(worker, t);
+                    }
+                }
+            }
+        };
+
+        await(newFanOut(maxInFlight, null).run(_workers, command, listener));
+        System.out.println();
+        printPolicyStats();
+    }
+
+    private void _commandWorkersAsyncOrdered(String command, int maxInFlight) throws InterruptedException {
+
+        final Map<Worker, Object> workerToResult = new ConcurrentHashMap<Worker, Object>(); // CommandResult or Throwable
+        final AtomicInteger numDone = new AtomicInteger(0);
+        final AtomicInteger numFailed = new AtomicInteger(0);
+        final long startTime = System.currentTimeMillis();
+
+        SSHFanOut.Listener listener = new SSHFanOut.Listener() {
+            @Override
+            public void completed(Worker worker, CommandResult result) {
+                workerToResult.put(worker, result);
+                if (! result.isSuccess()) {
+                    numFailed.incrementAndGet();
+                }
+                printProgress(numDone.incrementAndGet(), numFailed.get(), startTime, worker, LATENCY_PRINTER.resultToString(result));
+            }
+
+            @Override
+            public void failed(Worker worker, Throwable t) {
+                workerToResult.put(worker, t);
+                printProgress(numDone.incrementAndGet(), numFailed.incrementAndGet(), startTime, worker, t.toString());
+            }
+        };
+
+        await(newFanOut(maxInFlight, null).run(_workers, command, listener));
+        System.out.println();
+        printPolicyStats();
 
         if (! _verbose) {
-            System.out.println();
             return;
         }
 
-        for (int i = 0; i < futureToWorker.size(); i++) {
-            Future<String> future = ecs.take();
-            Worker worker = futureToWorker.get(future);
-            printFuture(worker, future);
+        for (Worker worker : _workers) {
+            Object result = workerToResult.get(worker);
+            if (result instanceof CommandResult) {
+                printResult(worker, (CommandResult) result);
+            } else {
+                printFailure(worker, (Throwable) result);
+            }
         }
+    }
+
+    /**
+     * Prints each distinct output once, as soon as it is first seen, and then which hosts had which output.
+     * With Normalizer.MASKED, outputs that only differ in timestamps, PIDs, etc. count as the same.
+     *
+     * @param maxInFlight max # of workers running the command at once, <= 0 for no limit
+     */
+    public void commandWorkersAggregated(String command, OutputAggregator.Normalizer normalizer, int maxInFlight) throws InterruptedException {
+        System.out.println("Commanding workers:\n" + command + "\n");
+
+        command = withSudo(command);
+
+        final OutputAggregator aggregator = new OutputAggregator(normalizer, UTF8.out);
 
-        executor.awaitTermination(1, TimeUnit.DAYS); // TODO: awaitTermnation even if ! _verbose ???
+        SSHFanOut.Listener listener = new SSHFanOut.Listener() {
+            @Override
+            public void completed(Worker worker, CommandResult result) {
+                aggregator.add(worker, result);
+            }
+
+            @Override
+            public void failed(Worker worker, Throwable t) {
+                aggregator.add(worker, t);
+            }
+        };
+
+        await(newFanOut(maxInFlight, null).run(_workers, command, listener));
+        System.out.println();
+        aggregator.printSummary();
+        printPolicyStats();
+    }
+
+    private void printProgress(int numDone, int numFailed, long startTime, Worker worker, String outcome) {
+        long now = System.currentTimeMillis();
+        int numLeft = _workers.size() - numDone;
+        long millisToComplete = VerboseThreadPoolExecutor.millisToComplete(startTime, numDone, numLeft);
+        String line = String.format("%1$tF %1$tT.%1$tL %2$d/%3$d complete" + SEP + "%4$d failed" + SEP + "taken %5$-12s" + SEP + "ETC %6$-12s" + SEP + "%7$s" + SEP + "%8$s",
+                now, numDone, _workers.size(), numFailed, Pretty.time(now - startTime), Pretty.time(millisToComplete), worker, outcome);
+        UTF8.out.println(line);
     }
 
-    private void _commandWorkersAsyncOrdered(String command) throws InterruptedException {
+    private static final TaskPrinter<CommandResult> LATENCY_PRINTER = new TaskPrinter<CommandResult>() {
+        @Override
+        public String resultToString(CommandResult result) {
+            if (result.cached) {
+                return "exit " + result.exitStatus + SEP + "cached, " + Pretty.time(result.getAgeMillis()) + " old";
+            }
+            return "exit " + result.exitStatus + SEP + Pretty.time(result.getTotalMillis());
+        }
+    };
+
+    /**
+     * Runs the command batch by batch, with at most rollout.maxInFlight hosts at a time.
+     * If there's a canary, it runs first on its own and any failure aborts the rollout.
+     * After each batch, the rollout is aborted if more than rollout.maxFailureRate of the hosts so far have failed.
+     * A host fails if the command throws or exits non-zero.
+     *
+     * @return false if the rollout was aborted
+     */
+    public boolean commandWorkersRolling(String command, Rollout rollout) throws InterruptedException {
+        System.out.println("Commanding workers:\n" + command + "\n");
+        System.out.println("Rollout: " + rollout + "\n");
+
+        command = withSudo(command);
+
+        final List<List<Worker>> batches = rollout.plan(_workers);
+        final AtomicInteger batchNum = new AtomicInteger(0);
+        final AtomicInteger numFailed = new AtomicInteger(0);
 
-        TaskPrinter<String> taskPrinter = new TaskPrinter<String>() {
+        Supplier<String> rolloutStatus = new Supplier<String>() {
             @Override
-            public String resultToString(String result) {
-                return "";
+            public String get() {
+                return "batch " + batchNum.get() + "/" + batches.size() + SEP + numFailed.get() + " failed";
             }
         };
 
         VerboseThreadPoolExecutor executor = VerboseThreadPoolExecutor.builder()
-                .setPoolSize(_workers.size())
+                .setPoolSize(rollout.getMaxInFlight(_workers.size()))
                 .setVerbosePrint(true)
                 .setPrintExceptions(false)
                 .setExpectedNumTasks(_workers.size())
-                .setTaskPrinter(taskPrinter)
+                .setTaskPrinter(LATENCY_PRINTER)
+                .setStatusSupplier(rolloutStatus)
+                .setTaskTimeout(_taskTimeoutMillis, TimeUnit.MILLISECONDS)
                 .build();
 
-        Map<Worker, Future<String>> workerToFuture = Maps.newLinkedHashMap();
+        Map<Worker, Long> workerToMillis = Maps.newHashMap();
+        int numDone = 0;
+        String abortReason = null;
 
-        for (Worker worker : _workers) {
-            Task task = new Task(worker, command);
-            Future<String> future = executor.submit(task);
-            workerToFuture.put(worker, future);
+        try {
+            for (List<Worker> batch : batches) {
+                batchNum.incrementAndGet();
+
+                Map<Worker, Future<CommandResult>> workerToFuture = Maps.newLinkedHashMap();
+                for (Worker worker : batch) {
+                    workerToFuture.put(worker, executor.submit(withPolicies(new Task(worker, command))));
+                }
+
+                for (Worker worker : workerToFuture.keySet()) {
+                    Future<CommandResult> future = workerToFuture.get(worker);
+                    numDone++;
+                    try {
+                        CommandResult result = future.get();
+                        workerToMillis.put(worker, result.getTotalMillis());
+                        if (! result.isSuccess()) {
+                            numFailed.incrementAndGet();
+                        }
+                    } catch (ExecutionException e) {
+                        numFailed.incrementAndGet();
+                    }
+                    if (_verbose) {
+                        printFuture(worker, future);
+                    }
+                }
+
+                boolean isCanary = rollout.canary && batchNum.get() == 1;
+                if (isCanary && numFailed.get() > 0) {
+                    abortReason = "canary failed: " + batch.get(0);
+                    break;
+                }
+
+                double failureRate = (double) numFailed.get() / numDone;
+                if (failureRate > rollout.maxFailureRate) {
+                    abortReason = numFailed.get() + " of " + numDone + " hosts failed";
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownGracefully(1, TimeUnit.DAYS);
         }
-        executor.shutdown();
-        executor.awaitTermination(1, TimeUnit.DAYS);
+
         System.out.println();
+        printLatencies(workerToMillis);
+        printPolicyStats();
 
-        if (! _verbose) {
+        if (abortReason != null) {
+            System.out.println("ABORTED rollout after batch " + batchNum.get() + "/" + batches.size()
+                    + " (" + numDone + " of " + _workers.size() + " hosts): " + abortReason);
+            return false;
+        }
+
+        System.out.println("Finished rollout: " + numFailed.get() + " of " + numDone + " hosts failed");
+        return true;
+    }
+
+    private static void printLatencies(Map<Worker, Long> workerToMillis) {
+        if (workerToMillis.isEmpty()) {
             return;
         }
 
-        for (Worker worker : workerToFuture.keySet()) {
-            Future<String> future = workerToFuture.get(worker);
-            printFuture(worker, future);
+        List<Long> millis = Lists.newArrayList(workerToMillis.values());
+        Collections.sort(millis);
+
+        Worker slowest = null;
+        for (Worker worker : workerToMillis.keySet()) {
+            if (slowest == null || workerToMillis.get(worker) > workerToMillis.get(slowest)) {
+                slowest = worker;
+            }
         }
+
+        System.out.println("Latency: p50 " + Pretty.time(percentile(millis, 0.5))
+                + SEP + "p90 " + Pretty.time(percentile(millis, 0.9))
+                + SEP + "p99 " + Pretty.time(percentile(millis, 0.99))
+                + SEP + "max " + Pretty.time(millis.get(millis.size() - 1)) + " (" + slowest + ")");
     }
 
-    private static void printFuture(Worker worker, Future<String> future) throws InterruptedException {
-        System.out.println(worker + "\n");
+    private static long percentile(List<Long> sorted, double p) {
+        int i = (int)Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, i));
+    }
+
+    /**
+     * Runs the command on all the workers at once, pushing each line of output to the sink as it arrives.
+     * Nothing is buffered per worker, so this works for commands that print far more than fits in memory.
+     */
+    public void commandWorkersStreaming(String command, OutputSink sink) throws InterruptedException {
+        commandWorkersStreaming(command, sink, 0);
+    }
+
+    /**
+     * @param maxInFlight max # of workers running the command at once, <= 0 for no limit
+     */
+    public void commandWorkersStreaming(String command, OutputSink sink, int maxInFlight) throws InterruptedException {
+        System.out.println("Commanding workers:\n" + command + "\n");
+
+        command = withSudo(command);
+
+        SSHFanOut.Listener listener = new SSHFanOut.Listener() {
+            @Override
+            public void completed(Worker worker, CommandResult result) {
+                if (_verbose) {
+                    UTF8.out.println(worker + SEP + "exit " + result.exitStatus + SEP + result.getTotalMillis() + " millis");
+                }
+            }
+
+            @Override
+            public void failed(Worker worker, Throwable t) {
+                UTF8.out.println(worker + SEP + t);
+            }
+        };
+
+        await(newFanOut(maxInFlight, sink).run(_workers, command, listener));
+        System.out.println();
+    }
+
+    private static final String SEP = "; ";
+
+    private static void printFuture(Worker worker, Future<CommandResult> future) throws InterruptedException {
         try {
-            UTF8.out.println(future.get());
+            printResult(worker, future.get());
         } catch (ExecutionException e) {
-            e.getCause().printStackTrace();
-            System.out.println();
+            printFailure(worker, e.getCause());
         }
     }
 
+    private static void printResult(Worker worker, CommandResult result) {
+        System.out.println(worker + "\n");
+        UTF8.out.println(result.getOutput());
+    }
+
+    private static void printFailure(Worker worker, Throwable t) {
+        System.out.println(worker + "\n");
+        t.printStackTrace();
+        System.out.println();
+    }
+
+    // Each relay ties up a thread here while its worker copies the file on, so there are at most this many per upload
+    private static final int RELAYS_PER_UPLOAD = 4;
+
+    public boolean pushFile(String localFile, String remoteFile, int maxParallel, boolean relay) throws IOException, InterruptedException {
+        return pushFile(localFile, remoteFile, maxParallel, relay, true);
+    }
+
+    /**
+     * Copies a local file to all the workers, see FilePusher.
+     *
+     * @param maxParallel max # of uploads from this machine at once
+     * @param relay if true, workers that have the file copy it on to the rest, at most RELAYS_PER_UPLOAD * maxParallel at once
+     * @param checkHostKeys false to relay without checking host keys, see FilePusher.setCheckHostKeys()
+     * @return false if any worker didn't get the file
+     */
+    public boolean pushFile(String localFile, String remoteFile, int maxParallel, boolean relay, boolean checkHostKeys) throws IOException, InterruptedException {
+        System.out.println("Pushing " + localFile + " to workers:" + remoteFile + (relay ? " (relaying)" : "") + "\n");
+
+        int maxRelays = relay ? Math.min(_workers.size(), RELAYS_PER_UPLOAD * maxParallel) : 0;
+        FilePusher pusher = new FilePusher(SSH.getSessionPool(), _username, _sshKeyFile, maxParallel, maxRelays)
+                .setCheckHostKeys(checkHostKeys);
+        Map<Worker, Throwable> failures = pusher.push(localFile, remoteFile, _workers);
+        System.out.println();
+
+        for (Worker worker : failures.keySet()) {
+            if (_verbose) {
+                printFailure(worker, failures.get(worker));
+            } else {
+                System.out.println(worker + SEP + failures.get(worker));
+            }
+        }
+        System.out.println("Pushed to " + (_workers.size() - failures.size()) + " of " + _workers.size() + " workers");
+        return failures.isEmpty();
+    }
+
     private void psGrep(String pattern, Args args) throws SSHException, InterruptedException {
         commandWorkers("ps aux | grep " + pattern + " | grep -v grep", args);
     }
@@ -216,6 +665,12 @@ public class SSHExecutor {
             return;
         }
 
+        if (args.hasFlag("push")) {
+            int maxParallel = args.hasFlag("parallel") ? Integer.parseInt(args.get("parallel")) : 8;
+            pushFile(args.get("push"), args.get("dest"), maxParallel, args.hasFlag("relay"), ! args.hasFlag("relayNoHostKeyCheck"));
+            return;
+        }
+
         if (args.hasFlag("ps")) {
             String pattern = args.get("ps");
             psGrep(pattern, args);
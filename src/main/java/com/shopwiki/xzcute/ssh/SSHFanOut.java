@@ -0,0 +1,269 @@
+package com.shopwiki.xzcute.ssh;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import com.google.common.base.Supplier;
+import com.shopwiki.xzcute.DaemonScheduledExecutor;
+import com.shopwiki.xzcute.DaemonThreadFactory;
+import com.shopwiki.xzcute.HedgePolicy;
+import com.shopwiki.xzcute.RetryPolicy;
+
+/**
+ * Runs a command on many workers with a cap on how many sessions are open at once.
+ *
+ * This is not a multiplexed transport: JSch gives every session its own blocking socket & reader thread,
+ * so each host in flight still costs one thread, and nothing here drives sessions from a fixed set of I/O threads.
+ * What it does bound is how many of those there are.
+ * Commands are started with SSH.executeAsync(), so no caller thread waits on an in-flight command,
+ * and whenever a command finishes the next worker is started from that completion callback,
+ * keeping at most maxInFlight commands running.
+ * Use a pool from newSessionPool(): it closes each session once its command is done
+ * & caps how many are open at once (i.e. how many reader threads there are), whatever maxInFlight is.
+ *
+ * Optionally, failed commands are retried (see RetryPolicy) and slow ones hedged (see HedgePolicy).
+ * A worker only counts as completed or failed once its last attempt is done.
+ */
+public class SSHFanOut {
+
+    /**
+     * Called from the session's I/O thread (or a ResultCache thread), possibly for several workers at once.
+     */
+    public interface Listener {
+        void completed(Worker worker, CommandResult result);
+        void failed(Worker worker, Throwable t);
+    }
+
+    private final SSHSessionPool pool;
+    private final String username;
+    private final String privateKeyFile;
+    private final int maxInFlight;
+    private final long timeoutMillis;
+    private final OutputSink sink;
+
+    public static final int DEFAULT_MAX_SESSIONS = 512;
+
+    // Waits out retry backoffs & hedge delays
+    private static final ScheduledExecutorService SCHEDULER = new DaemonScheduledExecutor(1, "SSHFanOut-scheduler");
+
+    // Does ResultCache's disk I/O, which mustn't hold up a session's I/O thread
+    private static final int NUM_CACHE_THREADS = 4;
+    private static final ThreadPoolExecutor CACHE_IO = new ThreadPoolExecutor(
+            NUM_CACHE_THREADS, NUM_CACHE_THREADS,
+            1L, TimeUnit.MINUTES,
+            new LinkedBlockingQueue<Runnable>(),
+            DaemonThreadFactory.getInstance("SSHFanOut-cache", true));
+
+    static {
+        CACHE_IO.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * A pool that doesn't keep sessions: each one is disconnected (& its reader thread ends) as soon as its command is done,
+     * and at most maxSessions are open at once, so a run over 10k hosts doesn't have 10k reader threads.
+     * 2 sessions per host leaves room for a hedge.
+     */
+    public static SSHSessionPool newSessionPool(int maxSessions) {
+        return new SSHSessionPool(2, 0, maxSessions);
+    }
+
+    private RetryPolicy retryPolicy = null;
+    private HedgePolicy hedgePolicy = null;
+    private ResultCache resultCache = null;
+
+    /**
+     * @param pool see newSessionPool()
+     * @param maxInFlight <= 0 means start every worker right away, though at most the pool's maxSessions get to run
+     * @param sink if not null, output is streamed to it instead of being kept in each CommandResult
+     */
+    public SSHFanOut(SSHSessionPool pool, String username, String privateKeyFile, int maxInFlight, long timeoutMillis, OutputSink sink) {
+        this.pool = pool;
+        this.username = username;
+        this.privateKeyFile = privateKeyFile;
+        this.maxInFlight = maxInFlight;
+        this.timeoutMillis = timeoutMillis;
+        this.sink = sink;
+    }
+
+    /**
+     * @param retryPolicy null for no retries
+     */
+    public SSHFanOut setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * Only for idempotent commands. With a sink, a hedged worker's output can show up twice.
+     *
+     * @param hedgePolicy null for no hedging
+     */
+    public SSHFanOut setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+        return this;
+    }
+
+    /**
+     * Results of cacheable commands (see ResultCache) are looked up first & stored once they're done.
+     * Ignored when there's a sink, since a cached result has no output to stream.
+     *
+     * @param resultCache null for no caching
+     */
+    public SSHFanOut setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+        return this;
+    }
+
+    /**
+     * @return completes once every worker has completed or failed,
+     *         exceptionally if the listener threw
+     */
+    public CompletableFuture<Void> run(List<Worker> workers, String command, Listener listener) {
+        Run run = new Run(workers, command, listener);
+        run.start();
+        return run.done;
+    }
+
+    private final class Run {
+        final List<Worker> workers;
+        final String command;
+        final Listener listener;
+
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicInteger remaining;
+        final AtomicReference<RuntimeException> listenerError = new AtomicReference<RuntimeException>();
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+        Run(List<Worker> workers, String command, Listener listener) {
+            this.workers = workers;
+            this.command = command;
+            this.listener = listener;
+            this.remaining = new AtomicInteger(workers.size());
+        }
+
+        void start() {
+            if (workers.isEmpty()) {
+                done.complete(null);
+                return;
+            }
+            int n = maxInFlight > 0 ? Math.min(maxInFlight, workers.size()) : workers.size();
+            for (int i = 0; i < n; i++) {
+                startNext();
+            }
+        }
+
+        void startNext() {
+            int i = next.getAndIncrement();
+            if (i >= workers.size()) {
+                return;
+            }
+
+            final Worker worker = workers.get(i);
+            CompletableFuture<CommandResult> future = execute(worker);
+            future.whenComplete(new BiConsumer<CommandResult, Throwable>() {
+                @Override
+                public void accept(CommandResult result, Throwable t) {
+                    try {
+                        if (t == null) {
+                            listener.completed(worker, result);
+                        } else {
+                            listener.failed(worker, t);
+                        }
+                    } catch (RuntimeException e) {
+                        listenerError.compareAndSet(null, e);
+                    } finally {
+                        startNext();
+                        finished();
+                    }
+                }
+            });
+        }
+
+        CompletableFuture<CommandResult> execute(final Worker worker) {
+            final ResultCache cache = sink == null && ResultCache.isCacheable(command) ? resultCache : null;
+            if (cache == null) {
+                return executeUncached(worker);
+            }
+
+            // The cache reads & writes files, so that happens on CACHE_IO, not on whichever I/O thread called startNext().
+            // That also keeps the listener's startNext() from recursing through every cached worker.
+            final CompletableFuture<CommandResult> future = new CompletableFuture<CommandResult>();
+            CACHE_IO.execute(new Runnable() {
+                @Override
+                public void run() {
+                    CommandResult cached;
+                    try {
+                        cached = cache.get(username, worker.host, command);
+                    } catch (RuntimeException e) {
+                        future.completeExceptionally(e);
+                        return;
+                    }
+                    if (cached != null) {
+                        future.complete(cached);
+                        return;
+                    }
+
+                    // The worker isn't done until it's cached
+                    executeUncached(worker).whenCompleteAsync(new BiConsumer<CommandResult, Throwable>() {
+                        @Override
+                        public void accept(CommandResult result, Throwable t) {
+                            if (t != null) {
+                                future.completeExceptionally(t);
+                                return;
+                            }
+                            try {
+                                cache.put(username, result);
+                                future.complete(result);
+                            } catch (RuntimeException e) {
+                                future.completeExceptionally(e);
+                            }
+                        }
+                    }, CACHE_IO);
+                }
+            });
+            return future;
+        }
+
+        CompletableFuture<CommandResult> executeUncached(final Worker worker) {
+            Supplier<CompletableFuture<CommandResult>> attempt = new Supplier<CompletableFuture<CommandResult>>() {
+                @Override
+                public CompletableFuture<CommandResult> get() {
+                    return SSH.executeAsync(pool, username, privateKeyFile, worker.host, command, timeoutMillis, sink);
+                }
+            };
+
+            final HedgePolicy hedge = hedgePolicy;
+            if (hedge != null) {
+                final Supplier<CompletableFuture<CommandResult>> unhedged = attempt;
+                attempt = new Supplier<CompletableFuture<CommandResult>>() {
+                    @Override
+                    public CompletableFuture<CommandResult> get() {
+                        return hedge.hedgeAsync(unhedged, SCHEDULER);
+                    }
+                };
+            }
+
+            RetryPolicy retry = retryPolicy;
+            return retry == null ? attempt.get() : retry.retryAsync(attempt, SCHEDULER);
+        }
+
+        void finished() {
+            if (remaining.decrementAndGet() != 0) {
+                return;
+            }
+            RuntimeException e = listenerError.get();
+            if (e == null) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(e);
+            }
+        }
+    }
+}
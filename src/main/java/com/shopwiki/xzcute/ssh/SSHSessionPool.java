@@ -0,0 +1,395 @@
+package com.shopwiki.xzcute.ssh;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.shopwiki.xzcute.DaemonScheduledExecutor;
+
+/**
+ * Keeps authenticated SSH sessions around so repeated commands to the same host
+ * only pay for opening a new exec channel instead of a full TCP + key-exchange handshake.
+ *
+ * Sessions are keyed by (username, host, privateKeyFile).
+ * A session is lent out to one command at a time, and at most maxSessionsPerHost are open per key.
+ * Idle sessions are health-checked when borrowed and disconnected after idleMillis.
+ *
+ * Every open session has its own JSch reader thread, so maxSessions also caps those threads.
+ * With an idleMillis of 0 nothing is pooled: sessions are disconnected as soon as they're released,
+ * which is what a run over a big fleet wants (see SSHFanOut).
+ */
+public class SSHSessionPool {
+
+    public static final int DEFAULT_MAX_SESSIONS_PER_HOST = 4;
+    public static final long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Sessions idle for longer than this get a keep-alive before being handed out again.
+     */
+    private static final long HEALTH_CHECK_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final class Key {
+        final String username;
+        final String privateKeyFile;
+        final String host;
+
+        Key(String username, String privateKeyFile, String host) {
+            this.username = username;
+            this.privateKeyFile = privateKeyFile;
+            this.host = host;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (! (obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return Objects.equal(username, other.username)
+                && Objects.equal(privateKeyFile, other.privateKeyFile)
+                && Objects.equal(host, other.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(username, privateKeyFile, host);
+        }
+
+        @Override
+        public String toString() {
+            return username + "@" + host;
+        }
+    }
+
+    private static final class HostPool {
+        final Deque<PooledSession> idle = new ArrayDeque<PooledSession>(); // guarded by this
+        int numOpen = 0; // guarded by this
+    }
+
+    /**
+     * A session borrowed from the pool.
+     * Call release() when done with it, or discard() if it shouldn't be reused.
+     */
+    public final class PooledSession {
+
+        public final Session session;
+        private final HostPool pool;
+        private final boolean reused;
+        private final long lastUsed;
+
+        private PooledSession(HostPool pool, Session session, boolean reused, long lastUsed) {
+            this.pool = pool;
+            this.session = session;
+            this.reused = reused;
+            this.lastUsed = lastUsed;
+        }
+
+        /**
+         * @return true if this session had already been used for a previous command
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        public void release() {
+            if (closed || idleMillis == 0 || ! session.isConnected()) {
+                discard();
+                return;
+            }
+            synchronized (pool) {
+                pool.idle.addFirst(new PooledSession(pool, session, true, System.currentTimeMillis()));
+                pool.notify();
+            }
+            idled();
+        }
+
+        public void discard() {
+            SSHSessionPool.this.discard(pool, session);
+        }
+    }
+
+    private final ConcurrentMap<Key, HostPool> pools = new ConcurrentHashMap<Key, HostPool>();
+    private final int maxSessionsPerHost;
+    private final long idleMillis;
+    private final int maxSessions;
+    private final Object sessionsLock = new Object(); // waited on by borrowers for any host when maxSessions are open
+    private int numSessions = 0; // open to all hosts together, guarded by sessionsLock
+    private long numIdled = 0; // sessions released to an idle list so far, guarded by sessionsLock
+    private final ScheduledExecutorService evictor; // null if nothing is pooled
+    private volatile boolean closed = false;
+
+    public SSHSessionPool() {
+        this(DEFAULT_MAX_SESSIONS_PER_HOST, DEFAULT_IDLE_MILLIS);
+    }
+
+    public SSHSessionPool(int maxSessionsPerHost, long idleMillis) {
+        this(maxSessionsPerHost, idleMillis, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param idleMillis 0 to disconnect sessions as soon as they're released
+     * @param maxSessions max # of sessions open at once, to all hosts together
+     */
+    public SSHSessionPool(int maxSessionsPerHost, long idleMillis, int maxSessions) {
+        if (maxSessionsPerHost <= 0 || idleMillis < 0 || maxSessions <= 0) {
+            throw new IllegalArgumentException();
+        }
+        this.maxSessionsPerHost = maxSessionsPerHost;
+        this.idleMillis = idleMillis;
+        this.maxSessions = maxSessions;
+
+        if (idleMillis == 0) {
+            evictor = null;
+            return;
+        }
+        evictor = new DaemonScheduledExecutor(1, "SSHSessionPool-evictor");
+        long period = Math.max(idleMillis / 2, 1000L);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public int getMaxSessionsPerHost() {
+        return maxSessionsPerHost;
+    }
+
+    public long getIdleMillis() {
+        return idleMillis;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    /**
+     * Blocks while maxSessionsPerHost sessions to this host are already lent out,
+     * or maxSessions are open & none of them are idle.
+     */
+    public PooledSession borrow(String username, String privateKeyFile, String host) throws JSchException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("SSHSessionPool is closed");
+        }
+
+        HostPool pool = getHostPool(new Key(username, privateKeyFile, host));
+
+        while (true) {
+            PooledSession idle = null;
+            synchronized (pool) {
+                while (true) {
+                    idle = pool.idle.pollFirst(); // most recently used first, so extra sessions go idle & get evicted
+                    if (idle != null) {
+                        break;
+                    }
+                    if (pool.numOpen < maxSessionsPerHost) {
+                        pool.numOpen++;
+                        break;
+                    }
+                    pool.wait();
+                }
+            }
+
+            if (idle == null) {
+                try {
+                    acquireSession();
+                } catch (InterruptedException e) {
+                    unreserve(pool);
+                    throw e;
+                }
+                try {
+                    Session session = SSH.createSession(username, privateKeyFile, host);
+                    return new PooledSession(pool, session, false, System.currentTimeMillis());
+                } catch (JSchException e) {
+                    closed(pool);
+                    throw e;
+                } catch (RuntimeException e) {
+                    closed(pool);
+                    throw e;
+                }
+            }
+
+            if (isHealthy(idle)) {
+                return idle;
+            }
+            discard(pool, idle.session);
+        }
+    }
+
+    private HostPool getHostPool(Key key) {
+        HostPool pool = pools.get(key);
+        if (pool == null) {
+            HostPool newPool = new HostPool();
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+        return pool;
+    }
+
+    private static boolean isHealthy(PooledSession pooled) {
+        if (! pooled.session.isConnected()) {
+            return false;
+        }
+        if (System.currentTimeMillis() - pooled.lastUsed < HEALTH_CHECK_MILLIS) {
+            return true;
+        }
+        try {
+            pooled.session.sendKeepAliveMsg(); // fails fast if the socket is gone
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Makes room by disconnecting the least recently used idle session to any host, if it has to.
+     * Otherwise waits until a session to any host is closed, or goes idle & can be disconnected.
+     */
+    private void acquireSession() throws InterruptedException {
+        while (true) {
+            long idled;
+            synchronized (sessionsLock) {
+                if (numSessions < maxSessions) {
+                    numSessions++;
+                    return;
+                }
+                idled = numIdled;
+            }
+            if (discardOldestIdle()) {
+                continue;
+            }
+            synchronized (sessionsLock) {
+                while (numSessions >= maxSessions && numIdled == idled) {
+                    sessionsLock.wait();
+                }
+            }
+        }
+    }
+
+    /**
+     * Wakes up borrowers for other hosts, if they're waiting for an idle session to disconnect.
+     */
+    private void idled() {
+        synchronized (sessionsLock) {
+            numIdled++;
+            if (numSessions >= maxSessions) {
+                sessionsLock.notifyAll();
+            }
+        }
+    }
+
+    private boolean discardOldestIdle() {
+        HostPool oldestPool = null;
+        PooledSession oldest = null;
+        for (HostPool pool : pools.values()) {
+            synchronized (pool) {
+                PooledSession pooled = pool.idle.peekLast();
+                if (pooled != null && (oldest == null || pooled.lastUsed < oldest.lastUsed)) {
+                    oldestPool = pool;
+                    oldest = pooled;
+                }
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        synchronized (oldestPool) {
+            if (! oldestPool.idle.remove(oldest)) {
+                return true; // Someone borrowed it in the meantime, so look again
+            }
+        }
+        discard(oldestPool, oldest.session);
+        return true;
+    }
+
+    private void discard(HostPool pool, Session session) {
+        session.disconnect();
+        closed(pool);
+    }
+
+    private void closed(HostPool pool) {
+        unreserve(pool);
+        synchronized (sessionsLock) {
+            numSessions--;
+            sessionsLock.notify();
+        }
+    }
+
+    private static void unreserve(HostPool pool) {
+        synchronized (pool) {
+            pool.numOpen--;
+            pool.notify();
+        }
+    }
+
+    private void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        for (HostPool pool : pools.values()) {
+            List<Session> toDisconnect = Lists.newArrayList();
+            synchronized (pool) {
+                Iterator<PooledSession> it = pool.idle.iterator();
+                while (it.hasNext()) {
+                    PooledSession pooled = it.next();
+                    if (pooled.lastUsed < cutoff || ! pooled.session.isConnected()) {
+                        it.remove();
+                        toDisconnect.add(pooled.session);
+                    }
+                }
+            }
+            for (Session session : toDisconnect) {
+                discard(pool, session);
+            }
+        }
+    }
+
+    /**
+     * Disconnects all idle sessions. Sessions that are lent out get disconnected when released.
+     */
+    public void close() {
+        closed = true;
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        for (HostPool pool : pools.values()) {
+            List<PooledSession> idle;
+            synchronized (pool) {
+                idle = Lists.newArrayList(pool.idle);
+                pool.idle.clear();
+            }
+            for (PooledSession pooled : idle) {
+                discard(pool, pooled.session);
+            }
+        }
+    }
+
+    public int getNumOpen(String username, String privateKeyFile, String host) {
+        HostPool pool = pools.get(new Key(username, privateKeyFile, host));
+        if (pool == null) {
+            return 0;
+        }
+        synchronized (pool) {
+            return pool.numOpen;
+        }
+    }
+
+    /**
+     * @return the # of sessions open to all hosts together
+     */
+    public int getNumOpen() {
+        synchronized (sessionsLock) {
+            return numSessions;
+        }
+    }
+}
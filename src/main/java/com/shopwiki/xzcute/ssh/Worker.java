@@ -1,16 +1,10 @@
 package com.shopwiki.xzcute.ssh;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
-import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
-import com.google.common.base.Strings;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
-import com.google.common.io.Files;
 
 /**
  * @author rstewart
@@ -19,10 +13,12 @@ public class Worker {
 
     public final int w;
     public final String host;
+    public final Map<String, String> tags; // from "host # role=db,az=1" in an inventory file
 
-    private Worker(int w, String host) {
+    Worker(int w, String host, Map<String, String> tags) {
         this.w = w;
         this.host = host;
+        this.tags = tags;
     }
 
     @Override
@@ -31,87 +27,67 @@ public class Worker {
         return "Worker # " + s + ": " + host;
     }
 
+    /**
+     * Quiet unless -listWorkers is set, so big inventories don't spend their startup printing hosts.
+     */
     static List<Worker> get(Args args) {
-        List<Worker> workers = null;
+        long startTime = System.currentTimeMillis();
+        Inventory inventory = null;
 
         if (args.hasFlag("hosts")) {
             String hostStr = args.get("hosts");
-            workers = getFromString(hostStr);
+            inventory = getInventoryFromString(hostStr);
         } else if (args.hasFlag("file")) {
             String filename = args.get("file");
-            workers = getFromFile(filename);
+            inventory = getInventoryFromFile(filename);
         } else {
             // TODO: USAGE message
+            return null;
+        }
+
+        List<Worker> workers = inventory.select(args);
+        long millis = System.currentTimeMillis() - startTime;
+
+        if (workers.size() < inventory.size()) {
+            System.out.println("Only using " + workers.size() + " of " + inventory.size() + " workers (" + millis + " millis)");
+        } else {
+            System.out.println("Using " + workers.size() + " workers (" + millis + " millis)");
+        }
+
+        if (args.hasFlag("listWorkers")) {
+            for (Worker worker : workers) {
+                System.out.println("# " + worker.w + "\t" + worker.host + (worker.tags.isEmpty() ? "" : "\t" + worker.tags));
+            }
         }
 
-        String filterStr = args.get("w");
-        return filterWorkers(workers, filterStr);
+        return workers;
     }
 
     public static List<Worker> getFromString(String str) {
-        System.out.println("Getting workers from string: " + str);
-        return get(COMMA_SPLITTER.split(str));
+        return getInventoryFromString(str).getWorkers();
     }
 
     public static List<Worker> getFromFile(String filename) {
+        return getInventoryFromFile(filename).getWorkers();
+    }
+
+    private static Inventory getInventoryFromString(String str) {
+        System.out.println("Getting workers from string: " + str);
+        return Inventory.fromLines(COMMA_SPLITTER.split(str));
+    }
+
+    private static Inventory getInventoryFromFile(String filename) {
         System.out.println("Getting workers from file: " + filename);
-        File file = new File(filename);
         try {
-            List<String> lines = Files.readLines(file, Charsets.UTF_8);
-            return get(lines);
+            return Inventory.fromFile(filename);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     public static List<Worker> get(Iterable<String> it) {
-        List<Worker> workers = Lists.newArrayList();
-        int w = 0;
-        for (String s : it) {
-            String host = s.trim();
-            if (host.isEmpty()) {
-                continue;
-            }
-            if (host.startsWith("#")) { // skip over lines that are commented-out
-                continue;
-            }
-            w++;
-            Worker worker = new Worker(w, host);
-            workers.add(worker);
-            System.out.println("# " + w + "\t" + host);
-        }
-        return workers;
-    }
-
-    // TODO: Make this public ???
-    private static List<Worker> filterWorkers(List<Worker> workers, String filterStr) {
-        Set<Integer> ws = getNums(filterStr);
-        if (ws == null) {
-            return workers;
-        }
-
-        System.out.println("Only using " + ws.size() + " workers: " + ws);
-        List<Worker> workersToUse = Lists.newArrayList();
-        for (Worker worker : workers) {
-            if (ws.contains(worker.w)) {
-                workersToUse.add(worker);
-            }
-        }
-        return workersToUse;
+        return Inventory.fromLines(it).getWorkers();
     }
 
     private static final Splitter COMMA_SPLITTER = Splitter.on(',');
-
-    private static Set<Integer> getNums(String arg) {
-
-        if (Strings.isNullOrEmpty(arg)) {
-            return null;
-        }
-
-        Set<Integer> ws = Sets.newTreeSet();
-        for (String piece : COMMA_SPLITTER.split(arg)) {
-            ws.add(Integer.parseInt(piece));
-        }
-        return ws;
-    }
 }
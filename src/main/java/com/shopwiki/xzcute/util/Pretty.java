@@ -1,15 +1,57 @@
 package com.shopwiki.xzcute.util;
 
+import java.io.IOException;
 import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
+import java.util.TimeZone;
 
 /**
  * Static methods for pretty-printing (i.e. human-readable)
  *
+ * Each one also comes in 2 flavours that don't create any objects, for the per-task print path:
+ * one that writes into a char[] (which needs MAX_LENGTH chars free) & returns the position after what it wrote,
+ * and one that appends to an Appendable.
+ *
  * @owner rstewart
  */
 public class Pretty {
 
+    /**
+     * The most chars any of the char[] methods write
+     */
+    public static final int MAX_LENGTH = 48;
+
+    private static final long[] POWERS_OF_10 = new long[19];
+    static {
+        POWERS_OF_10[0] = 1;
+        for (int i = 1; i < POWERS_OF_10.length; i++)
+            POWERS_OF_10[i] = POWERS_OF_10[i - 1] * 10;
+    }
+
+    // String.valueOf(double) uses E notation outside [MIN_FIXED, MAX_FIXED)
+    private static final double MIN_FIXED = 1e-3;
+    private static final double MAX_FIXED = 1e7;
+    private static final double MAX_EXACT = 1e15; // beyond this a long of digits isn't exact as a double
+
+    private static final char[] METRIC_SUFFIXES = { 0, 'K', 'M', 'G' };
+
+    private static final char[] MILLIS = " millis".toCharArray();
+    private static final char[] SECONDS = " seconds".toCharArray();
+    private static final char[] MINUTES = " minutes".toCharArray();
+    private static final char[] HOURS = " hours".toCharArray();
+    private static final char[] DAYS = " days".toCharArray();
+
+    private static final DecimalFormatSymbols SYMBOLS = DecimalFormatSymbols.getInstance();
+    private static final TimeZone TIME_ZONE = TimeZone.getDefault(); // getDefault() makes a copy every time
+
+    private static final ThreadLocal<char[]> scratch = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[MAX_LENGTH];
+        }
+    };
+
     public static String bytes(double n) {
         return metric(n, 1024);
     }
@@ -19,68 +61,163 @@ public class Pretty {
     }
 
     public static String metric(double n, int multiple) {
-        if (n < 0)
-            return "-" + bytes(Math.abs(n));
+        char[] buf = scratch.get();
+        return new String(buf, 0, metric(n, multiple, buf, 0));
+    }
 
-        if (n < multiple)
-            return round(n);
+    public static int bytes(double n, char[] buf, int pos) {
+        return metric(n, 1024, buf, pos);
+    }
 
-        n /= multiple;
-        if (n < multiple)
-            return round(n) + "K";
+    public static int metric(double n, char[] buf, int pos) {
+        return metric(n, 1000, buf, pos);
+    }
 
-        n /= multiple;
-        if (n < multiple)
-            return round(n) + "M";
+    public static int metric(double n, int multiple, char[] buf, int pos) {
+        if (n < 0) {
+            buf[pos++] = '-';
+            n = Math.abs(n);
+        }
 
-        n /= multiple;
-        return round(n) + "G";
+        int i = 0;
+        while (i < METRIC_SUFFIXES.length - 1 && ! (n < multiple)) { // NaN goes all the way, as it always has
+            n /= multiple;
+            i++;
+        }
+        pos = round(n, buf, pos);
+        if (i > 0)
+            buf[pos++] = METRIC_SUFFIXES[i];
+        return pos;
     }
 
     public static String time(long millis) {
-        if (millis < 0) 
-            return "-" + time(Math.abs(millis));
+        char[] buf = scratch.get();
+        return new String(buf, 0, time(millis, buf, 0));
+    }
+
+    public static int time(long millis, char[] buf, int pos) {
+        if (millis < 0) {
+            buf[pos++] = '-';
+            millis = millis == Long.MIN_VALUE ? Long.MAX_VALUE : -millis;
+        }
 
         if (millis < 1000)
-            return millis + " millis";
+            return chars(MILLIS, buf, digits(millis, buf, pos));
 
         double seconds = (double)millis / 1000;
         if (seconds < 60)
-            return round(seconds) + " seconds";
+            return chars(SECONDS, buf, round(seconds, buf, pos));
 
         double minutes = seconds / 60;
         if (minutes < 60)
-            return round(minutes) + " minutes";
+            return chars(MINUTES, buf, round(minutes, buf, pos));
 
         double hours = minutes / 60;
         if (hours < 24)
-            return round(hours) + " hours";
+            return chars(HOURS, buf, round(hours, buf, pos));
 
         double days = hours / 24;
-        return round(days) + " days";
+        return chars(DAYS, buf, round(days, buf, pos));
     }
 
     public static String round(double d) {
+        char[] buf = scratch.get();
+        return new String(buf, 0, round(d, buf, 0));
+    }
+
+    public static int round(double d, char[] buf, int pos) {
         if (d < 1) {
-            return round(d, 3);
+            return round(d, 3, buf, pos);
         }
 
         if (d < 10) {
-            return round(d, 2);
+            return round(d, 2, buf, pos);
         }
 
         if (d < 100) {
-            return round(d, 1);
+            return round(d, 1, buf, pos);
         }
 
-        return round(d, 0);
+        return round(d, 0, buf, pos);
     }
 
     public static String round(double d, int decimalPlaces) {
+        char[] buf = scratch.get();
+        return new String(buf, 0, round(d, decimalPlaces, buf, 0));
+    }
+
+    /**
+     * Same digits as String.valueOf() of the rounded double, e.g. "2.5", "3.0" or "0.001"
+     */
+    public static int round(double d, int decimalPlaces, char[] buf, int pos) {
+        if (decimalPlaces >= 0 && decimalPlaces < POWERS_OF_10.length) {
+            long tens = POWERS_OF_10[decimalPlaces];
+            double scaled = d * tens;
+            if (Math.abs(scaled) < MAX_EXACT) {
+                long rounded = Math.round(scaled);
+                double abs = Math.abs((double) rounded / tens);
+                if (abs < MAX_FIXED && (abs >= MIN_FIXED || rounded == 0))
+                    return fixedPoint(rounded, decimalPlaces, buf, pos);
+            }
+        }
+
+        // NaN, infinite, huge or tiny, so it's E notation or the like anyway
         double tens = Math.pow(10, decimalPlaces);
-        //return FastMath.round(d * tens) / tens;
-        d = Math.round(d * tens) / tens; // TODO: Use FastMath.round ???
-        return String.valueOf(d);
+        d = Math.round(d * tens) / tens;
+        String s = String.valueOf(d);
+        s.getChars(0, s.length(), buf, pos);
+        return pos + s.length();
+    }
+
+    /**
+     * @return the position after n / 10^decimalPlaces, without trailing zeros but with at least 1 decimal place
+     */
+    private static int fixedPoint(long n, int decimalPlaces, char[] buf, int pos) {
+        if (n < 0) {
+            buf[pos++] = '-';
+            n = -n;
+        }
+        long tens = POWERS_OF_10[decimalPlaces];
+        pos = digits(n / tens, buf, pos);
+        buf[pos++] = '.';
+        if (decimalPlaces == 0) {
+            buf[pos++] = '0';
+            return pos;
+        }
+
+        long fraction = n % tens;
+        int end = pos + decimalPlaces;
+        for (int i = end - 1; i >= pos; i--) {
+            buf[i] = (char) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        while (end > pos + 1 && buf[end - 1] == '0')
+            end--;
+        return end;
+    }
+
+    /**
+     * @param n >= 0
+     */
+    private static int digits(long n, char[] buf, int pos) {
+        int end = pos + numDigits(n);
+        for (int i = end - 1; i >= pos; i--) {
+            buf[i] = (char) ('0' + n % 10);
+            n /= 10;
+        }
+        return end;
+    }
+
+    private static int numDigits(long n) {
+        int numDigits = 1;
+        while (numDigits < POWERS_OF_10.length && n >= POWERS_OF_10[numDigits])
+            numDigits++;
+        return numDigits;
+    }
+
+    private static int chars(char[] chars, char[] buf, int pos) {
+        System.arraycopy(chars, 0, buf, pos, chars.length);
+        return pos + chars.length;
     }
 
     private static final ThreadLocal<NumberFormat> numberFormat = new ThreadLocal<NumberFormat>() {
@@ -91,10 +228,119 @@ public class Pretty {
     };
 
     public static final String comma(long n) {
-        return numberFormat.get().format(n);
+        char[] buf = scratch.get();
+        return new String(buf, 0, comma(n, buf, 0));
     }
 
     public static final String comma(double n) {
         return numberFormat.get().format(n);
     }
+
+    /**
+     * Groups of 3 digits, with the default locale's separator like comma(long)
+     */
+    public static int comma(long n, char[] buf, int pos) {
+        if (n < 0) {
+            buf[pos++] = SYMBOLS.getMinusSign();
+        }
+        // Works in negatives, which go 1 further than positives
+        long negative = n < 0 ? n : -n;
+        int numDigits = numDigits(negative == Long.MIN_VALUE ? Long.MAX_VALUE : -negative);
+        int end = pos + numDigits + (numDigits - 1) / 3;
+        char separator = SYMBOLS.getGroupingSeparator();
+        for (int i = end - 1, d = 0; i >= pos; i--, d++) {
+            if (d % 4 == 3) {
+                buf[i] = separator;
+            } else {
+                buf[i] = (char) ('0' - negative % 10);
+                negative /= 10;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Like String.format("%1$tF %1$tT.%1$tL", millis), i.e. "2014-06-30 13:45:01.234", in the default time zone
+     */
+    public static int timestamp(long millis, char[] buf, int pos) {
+        long local = millis + TIME_ZONE.getOffset(millis);
+        long days = Math.floorDiv(local, 86400000L);
+        int millisOfDay = (int) Math.floorMod(local, 86400000L);
+
+        // Howard Hinnant's civil_from_days()
+        long z = days + 719468;
+        long era = Math.floorDiv(z, 146097);
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        pos = padded(year, 4, buf, pos);
+        buf[pos++] = '-';
+        pos = padded(month, 2, buf, pos);
+        buf[pos++] = '-';
+        pos = padded(day, 2, buf, pos);
+        buf[pos++] = ' ';
+        pos = padded(millisOfDay / 3600000, 2, buf, pos);
+        buf[pos++] = ':';
+        pos = padded(millisOfDay / 60000 % 60, 2, buf, pos);
+        buf[pos++] = ':';
+        pos = padded(millisOfDay / 1000 % 60, 2, buf, pos);
+        buf[pos++] = '.';
+        return padded(millisOfDay % 1000, 3, buf, pos);
+    }
+
+    private static int padded(long n, int width, char[] buf, int pos) {
+        if (n < 0) {
+            buf[pos++] = '-';
+            n = -n;
+        }
+        for (int i = numDigits(n); i < width; i++)
+            buf[pos++] = '0';
+        return digits(n, buf, pos);
+    }
+
+    // Appendable versions, which go via a per-thread char[]
+
+    public static void appendBytes(Appendable out, double n) throws IOException {
+        char[] buf = scratch.get();
+        append(out, buf, bytes(n, buf, 0));
+    }
+
+    public static void appendMetric(Appendable out, double n) throws IOException {
+        char[] buf = scratch.get();
+        append(out, buf, metric(n, buf, 0));
+    }
+
+    public static void appendTime(Appendable out, long millis) throws IOException {
+        char[] buf = scratch.get();
+        append(out, buf, time(millis, buf, 0));
+    }
+
+    public static void appendRound(Appendable out, double d) throws IOException {
+        char[] buf = scratch.get();
+        append(out, buf, round(d, buf, 0));
+    }
+
+    public static void appendComma(Appendable out, long n) throws IOException {
+        char[] buf = scratch.get();
+        append(out, buf, comma(n, buf, 0));
+    }
+
+    public static void appendTimestamp(Appendable out, long millis) throws IOException {
+        char[] buf = scratch.get();
+        append(out, buf, timestamp(millis, buf, 0));
+    }
+
+    private static void append(Appendable out, char[] buf, int length) throws IOException {
+        if (out instanceof StringBuilder) {
+            ((StringBuilder) out).append(buf, 0, length);
+            return;
+        }
+        for (int i = 0; i < length; i++)
+            out.append(buf[i]);
+    }
 }